@@ -0,0 +1,202 @@
+(ns clj.facile.bench
+  (:use clj.facile
+	clj.facile.el
+	clj.facile.taglib.core)
+  (:import (java.io StringWriter)
+	   (javax.faces.component UIViewRoot)
+	   (clojure.lang RT)
+	   (clj.facile ClojurePropertyResolver ClojureVariableResolver)
+	   (clj.facile.bench BenchFacesContext BenchViewHandler)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; Benchmarks for Facile's hot paths: resolving bindings, generating EL,
+;; building views and rendering them. JMH runs them (FacileBenchmarks, with
+;; `gradle jmh`) in the JVM of a webapp booted in an embedded Jetty, with a
+;; BenchFacesContext standing in for the request.
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; Fixtures
+
+;; EL can't name a namespace with dots in it, so the bound vars live in
+;; namespace 'bench'
+(def #^{:private true} text-var (RT/var "bench" "text" (ref "Some text")))
+(def #^{:private true} choice-var (RT/var "bench" "choice" (ref "v3")))
+(def #^{:private true} rows-var
+     (RT/var "bench" "rows"
+	     (ref (vec (for [i (range 1000)]
+			 {:id i,
+			  :name (str "Row " i),
+			  :email (str "row" i "@example.com")})))))
+
+(defn large-form
+  "A form with 100 labelled text inputs and 20 drop-downs, all bound to vars"
+  []
+
+  {:id "bench/large-form",
+   :template
+   [(apply form "large-form"
+	   (concat
+	    (mapcat (fn [i]
+		      [(output "javax.faces.HtmlOutputLabel" (str "l" i) (str "Field " i) nil)
+		       (input "javax.faces.HtmlInputText" (str "f" i) text-var)])
+		    (range 100))
+	    (map (fn [i]
+		   (select-one "javax.faces.HtmlSelectOneMenu" (str "s" i) choice-var
+			       (select-items (apply hash-map
+						    (mapcat (fn [j] [(str "Item " j) (str "v" j)])
+							    (range 10))))))
+		 (range 20))
+	    [(command "javax.faces.HtmlCommandButton" "submit" "Submit" false
+		      (fn [] nil))]))]})
+
+(defn data-table
+  "A data table of 1000 rows of three columns"
+  []
+
+  {:id "bench/data-table",
+   :template
+   [(data "javax.faces.HtmlDataTable" "rows" {:value rows-var, :var "row"} nil
+	  [(column "c-id"
+		   (output "javax.faces.HtmlOutputText" "id" (el (bind 'row (dot :id))) nil))
+	   (column "c-name"
+		   (output "javax.faces.HtmlOutputText" "name" (el (bind 'row (dot :name))) nil))
+	   (column "c-email"
+		   (output "javax.faces.HtmlOutputText" "email" (el (bind 'row (dot :email))) nil))]
+	  nil)]})
+
+(defn- nested-panel
+  [depth]
+
+  (if (zero? depth)
+    (output "javax.faces.HtmlOutputText" "leaf" "Leaf" nil)
+    (children (panel "javax.faces.HtmlPanelGroup" (str "p" depth) {})
+	      (output "javax.faces.HtmlOutputText" (str "before" depth) text-var nil)
+	      (nested-panel (dec depth))
+	      (output "javax.faces.HtmlOutputText" (str "after" depth) "Text" nil))))
+
+(defn nested-panels
+  "Panels nested 50 deep, each with a bound and a literal output"
+  []
+
+  {:id "bench/nested-panels",
+   :template [(nested-panel 50)]})
+
+(defn- new-root
+  []
+
+  (let [#^UIViewRoot root (.createComponent *faces-app* UIViewRoot/COMPONENT_TYPE)]
+    (.setViewId root (str "/" *view-id*))
+    (.setRenderKitId root "HTML_BASIC")
+    (.setViewRoot *faces-context* root)
+    root))
+
+(defn- build
+  "Builds a fresh view of fixture"
+  [fixture]
+
+  (binding [*view-root* (new-root)]
+    (build-view fixture *view-root*)
+    *view-root*))
+
+(defn- render
+  "Renders root to a string; returns its length"
+  [#^BenchViewHandler handler root]
+
+  (let [w (StringWriter.),
+	ctx *faces-context*]
+    (.setResponseWriter ctx (.createResponseWriter (.getRenderKit ctx) w "text/html" "UTF-8"))
+    (.render handler ctx root)
+    (.length (.getBuffer w))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; Benchmarks
+
+;; [name view-id setup]; setup runs inside begin and returns the fn to
+;; measure
+(def benchmarks
+     [["ClojurePropertyResolver.getValue(ns)" "bench/resolver"
+       (fn []
+	 (let [r (ClojurePropertyResolver. nil),
+	       ns (find-ns 'bench)]
+	   #(.getValue r ns "text")))]
+
+      ["ClojurePropertyResolver.getValue(map)" "bench/resolver"
+       (fn []
+	 (let [r (ClojurePropertyResolver. nil),
+	       m {:name "Row 0", :email "row0@example.com"}]
+	   #(.getValue r m ":name")))]
+
+      ["ClojureVariableResolver.mangleIdent" "bench/el"
+       (fn []
+	 #(ClojureVariableResolver/mangleIdent "*view-bindings*"))]
+
+      ["ClojureVariableResolver.unmangleIdent" "bench/el"
+       (fn []
+	 (let [mangled (ClojureVariableResolver/mangleIdent "*view-bindings*")]
+	   #(ClojureVariableResolver/unmangleIdent mangled)))]
+
+      ["el" "bench/el"
+       (fn []
+	 #(el (bind text-var)))]
+
+      ["build-view.large-form" "bench/large-form"
+       (fn []
+	 (let [fixture (large-form)]
+	   #(build fixture)))]
+
+      ["build-view.data-table" "bench/data-table"
+       (fn []
+	 (let [fixture (data-table)]
+	   #(build fixture)))]
+
+      ["build-view.nested-panels" "bench/nested-panels"
+       (fn []
+	 (let [fixture (nested-panels)]
+	   #(build fixture)))]
+
+      ["renderResponse.large-form" "bench/large-form"
+       (fn []
+	 (let [handler (BenchViewHandler.),
+	       root (build (large-form))]
+	   #(render handler root)))]
+
+      ["renderResponse.data-table" "bench/data-table"
+       (fn []
+	 (let [handler (BenchViewHandler.),
+	       root (build (data-table))]
+	   #(render handler root)))]
+
+      ["renderResponse.nested-panels" "bench/nested-panels"
+       (fn []
+	 (let [handler (BenchViewHandler.),
+	       root (build (nested-panels))]
+	   #(render handler root)))]])
+
+;; Set up and measured on the same thread, as the bindings and the
+;; FacesContext are the thread's
+(defn end
+  "Releases what begin set up on this thread"
+  []
+
+  (.release #^BenchFacesContext *faces-context*)
+  (pop-thread-bindings))
+
+(defn begin
+  "Sets up the benchmark called name on this thread, with a BenchFacesContext
+  standing in for a request to its view and Facile's bindings set up as for
+  a real request. Returns the fn to measure; end undoes the rest."
+  [name]
+
+  (let [[_ view-id setup] (first (filter #(= name (first %)) benchmarks))]
+    (when-not setup
+      (throw (IllegalArgumentException. (str "No benchmark " name))))
+    (let [ctx (BenchFacesContext.)]
+      (push-thread-bindings {#'*faces-context* ctx,
+			     #'*faces-app* (.getApplication ctx),
+			     #'*view-id* view-id})
+      (try
+       (setup)
+       (catch Exception e
+	 (end)
+	 (throw e))))))
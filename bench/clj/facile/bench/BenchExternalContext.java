@@ -0,0 +1,205 @@
+package clj.facile.bench;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.faces.context.ExternalContext;
+
+/**
+ * An ExternalContext without a servlet container behind it: the scoped maps
+ * are plain HashMaps, and there is no request or response object.
+ */
+// JSF 1.1 declares its maps and iterators raw
+@SuppressWarnings("rawtypes")
+public class BenchExternalContext extends ExternalContext {
+
+	private final Map<String,Object> applicationMap = new HashMap<String,Object>();
+	private final Map<String,Object> sessionMap = new HashMap<String,Object>();
+	private final Map<String,Object> requestMap = new HashMap<String,Object>();
+	private final Map<String,String> parameterMap = new HashMap<String,String>();
+
+	/**
+	 * Request parameters, e.g. to stand in for a postback.
+	 */
+	public Map<String,String> getParameters() {
+		return parameterMap;
+	}
+
+	@Override
+	public void dispatch(String path) {
+		throw new UnsupportedOperationException("dispatch");
+	}
+
+	@Override
+	public String encodeActionURL(String url) {
+		return url;
+	}
+
+	@Override
+	public String encodeNamespace(String name) {
+		return name;
+	}
+
+	@Override
+	public String encodeResourceURL(String url) {
+		return url;
+	}
+
+	@Override
+	public Map getApplicationMap() {
+		return applicationMap;
+	}
+
+	@Override
+	public String getAuthType() {
+		return null;
+	}
+
+	@Override
+	public Object getContext() {
+		return null;
+	}
+
+	@Override
+	public String getInitParameter(String name) {
+		return null;
+	}
+
+	@Override
+	public Map getInitParameterMap() {
+		return Collections.EMPTY_MAP;
+	}
+
+	@Override
+	public String getRemoteUser() {
+		return null;
+	}
+
+	@Override
+	public Object getRequest() {
+		return null;
+	}
+
+	@Override
+	public String getRequestContextPath() {
+		return "/bench";
+	}
+
+	@Override
+	public Map getRequestCookieMap() {
+		return Collections.EMPTY_MAP;
+	}
+
+	@Override
+	public Map getRequestHeaderMap() {
+		return Collections.EMPTY_MAP;
+	}
+
+	@Override
+	public Map getRequestHeaderValuesMap() {
+		return Collections.EMPTY_MAP;
+	}
+
+	@Override
+	public Locale getRequestLocale() {
+		return Locale.getDefault();
+	}
+
+	@Override
+	public Iterator getRequestLocales() {
+		return Collections.singletonList(Locale.getDefault()).iterator();
+	}
+
+	@Override
+	public Map getRequestMap() {
+		return requestMap;
+	}
+
+	@Override
+	public Map getRequestParameterMap() {
+		return parameterMap;
+	}
+
+	@Override
+	public Iterator getRequestParameterNames() {
+		return parameterMap.keySet().iterator();
+	}
+
+	@Override
+	public Map getRequestParameterValuesMap() {
+		final Map<String,String[]> values = new HashMap<String,String[]>();
+		for( Map.Entry<String,String> e : parameterMap.entrySet() )
+			values.put(e.getKey(), new String[] { e.getValue() });
+		return values;
+	}
+
+	@Override
+	public String getRequestPathInfo() {
+		return null;
+	}
+
+	@Override
+	public String getRequestServletPath() {
+		return "/faces";
+	}
+
+	@Override
+	public URL getResource(String path) {
+		return null;
+	}
+
+	@Override
+	public InputStream getResourceAsStream(String path) {
+		return null;
+	}
+
+	@Override
+	public Set getResourcePaths(String path) {
+		return Collections.EMPTY_SET;
+	}
+
+	@Override
+	public Object getResponse() {
+		return null;
+	}
+
+	@Override
+	public Object getSession(boolean create) {
+		return null;
+	}
+
+	@Override
+	public Map getSessionMap() {
+		return sessionMap;
+	}
+
+	@Override
+	public Principal getUserPrincipal() {
+		return null;
+	}
+
+	@Override
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+
+	@Override
+	public void log(String message) {
+	}
+
+	@Override
+	public void log(String message, Throwable t) {
+	}
+
+	@Override
+	public void redirect(String url) {
+		throw new UnsupportedOperationException("redirect");
+	}
+}
@@ -0,0 +1,152 @@
+package clj.facile.bench;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.faces.FactoryFinder;
+import javax.faces.application.Application;
+import javax.faces.application.ApplicationFactory;
+import javax.faces.application.FacesMessage;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.faces.context.ResponseStream;
+import javax.faces.context.ResponseWriter;
+import javax.faces.render.RenderKit;
+import javax.faces.render.RenderKitFactory;
+
+/**
+ * A FacesContext for running Facile outside of a request, e.g. in
+ * benchmarks: the real Application and HTML RenderKit, with a
+ * BenchExternalContext in place of the servlet request.
+ * It is the current instance for the creating thread until release().
+ */
+// JSF 1.1 declares its iterators raw
+@SuppressWarnings("rawtypes")
+public class BenchFacesContext extends FacesContext {
+
+	private final Application application;
+	private final ExternalContext externalContext;
+	private RenderKit renderKit;
+	private final List<FacesMessage> messages = new ArrayList<FacesMessage>();
+
+	private UIViewRoot viewRoot;
+	private ResponseWriter responseWriter;
+	private ResponseStream responseStream;
+	private boolean renderResponse;
+	private boolean responseComplete;
+
+	public BenchFacesContext() {
+		final ApplicationFactory appFactory = (ApplicationFactory)FactoryFinder.getFactory(FactoryFinder.APPLICATION_FACTORY);
+		this.application = appFactory.getApplication();
+		this.externalContext = new BenchExternalContext();
+
+		setCurrentInstance(this);
+	}
+
+	@Override
+	public Application getApplication() {
+		return application;
+	}
+
+	@Override
+	public Iterator getClientIdsWithMessages() {
+		return new ArrayList<String>().iterator();
+	}
+
+	@Override
+	public ExternalContext getExternalContext() {
+		return externalContext;
+	}
+
+	@Override
+	public FacesMessage.Severity getMaximumSeverity() {
+		FacesMessage.Severity max = null;
+		for( FacesMessage m : messages )
+			if( null == max || m.getSeverity().compareTo(max) > 0 )
+				max = m.getSeverity();
+		return max;
+	}
+
+	@Override
+	public Iterator getMessages() {
+		return messages.iterator();
+	}
+
+	@Override
+	public Iterator getMessages(String clientId) {
+		return messages.iterator();
+	}
+
+	@Override
+	public RenderKit getRenderKit() {
+		// The factory wants a context to look it up with
+		if( null == renderKit ) {
+			final RenderKitFactory factory = (RenderKitFactory)FactoryFinder.getFactory(FactoryFinder.RENDER_KIT_FACTORY);
+			renderKit = factory.getRenderKit(this, RenderKitFactory.HTML_BASIC_RENDER_KIT);
+		}
+		return renderKit;
+	}
+
+	@Override
+	public boolean getRenderResponse() {
+		return renderResponse;
+	}
+
+	@Override
+	public boolean getResponseComplete() {
+		return responseComplete;
+	}
+
+	@Override
+	public ResponseStream getResponseStream() {
+		return responseStream;
+	}
+
+	@Override
+	public void setResponseStream(ResponseStream responseStream) {
+		this.responseStream = responseStream;
+	}
+
+	@Override
+	public ResponseWriter getResponseWriter() {
+		return responseWriter;
+	}
+
+	@Override
+	public void setResponseWriter(ResponseWriter responseWriter) {
+		this.responseWriter = responseWriter;
+	}
+
+	@Override
+	public UIViewRoot getViewRoot() {
+		return viewRoot;
+	}
+
+	@Override
+	public void setViewRoot(UIViewRoot viewRoot) {
+		this.viewRoot = viewRoot;
+	}
+
+	@Override
+	public void addMessage(String clientId, FacesMessage message) {
+		messages.add(message);
+	}
+
+	@Override
+	public void release() {
+		if( getCurrentInstance() == this )
+			setCurrentInstance(null);
+	}
+
+	@Override
+	public void renderResponse() {
+		renderResponse = true;
+	}
+
+	@Override
+	public void responseComplete() {
+		responseComplete = true;
+	}
+}
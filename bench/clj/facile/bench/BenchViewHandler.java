@@ -0,0 +1,22 @@
+package clj.facile.bench;
+
+import java.io.IOException;
+
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+
+import clj.facile.FacileViewHandler;
+
+/**
+ * Exposes FacileViewHandler's rendering of a component tree.
+ */
+public class BenchViewHandler extends FacileViewHandler {
+
+	public BenchViewHandler() throws Exception {
+		super(null);
+	}
+
+	public void render(FacesContext ctx, UIComponent component) throws IOException {
+		renderResponse(ctx, component);
+	}
+}
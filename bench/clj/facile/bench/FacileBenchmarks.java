@@ -0,0 +1,101 @@
+package clj.facile.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import clj.facile.dev.EmbeddedServer;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/**
+ * Runs the benchmarks of clj.facile.bench under JMH, one per name, against
+ * the webapp in the directory named by the clj.facile.webapp system
+ * property, booted in an embedded Jetty in each fork.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FacileBenchmarks {
+
+	public static final String WEBAPP = "clj.facile.webapp";
+
+	@State(Scope.Benchmark)
+	public static class Webapp {
+		EmbeddedServer server;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			final String dir = System.getProperty(WEBAPP);
+			if( null == dir )
+				throw new IllegalStateException("No webapp directory; set " + WEBAPP);
+			server = EmbeddedServer.start(new File(dir));
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+			server.stop();
+		}
+	}
+
+	// Set up by the thread that runs the benchmark, as the FacesContext and
+	// Clojure's bindings are the thread's
+	@State(Scope.Thread)
+	public static class Request {
+
+		@Param({ "ClojurePropertyResolver.getValue(ns)",
+				"ClojurePropertyResolver.getValue(map)",
+				"ClojureVariableResolver.mangleIdent",
+				"ClojureVariableResolver.unmangleIdent",
+				"el",
+				"build-view.large-form",
+				"build-view.data-table",
+				"build-view.nested-panels",
+				"renderResponse.large-form",
+				"renderResponse.data-table",
+				"renderResponse.nested-panels" })
+		public String name;
+
+		IFn op;
+		private ClassLoader loader;
+
+		@Setup(Level.Trial)
+		public void begin(Webapp webapp) throws Exception {
+			final Thread thread = Thread.currentThread();
+			loader = thread.getContextClassLoader();
+			thread.setContextClassLoader(webapp.server.getClassLoader());
+
+			RT.var("clojure.core", "require").invoke(Symbol.intern("clj.facile.bench"));
+			op = (IFn)RT.var("clj.facile.bench", "begin").invoke(name);
+		}
+
+		@TearDown(Level.Trial)
+		public void end() throws Exception {
+			final Var end = RT.var("clj.facile.bench", "end");
+			end.invoke();
+			Thread.currentThread().setContextClassLoader(loader);
+		}
+	}
+
+	@Benchmark
+	public Object run(Request request) throws Exception {
+		return request.op.invoke();
+	}
+}
@@ -20,9 +20,21 @@
 (def #^java.util.Map *headers* nil)
 (def #^java.util.Map *headers-multi* nil)
 
+;; Widgets bound to Vars while a view is being built
+(def *view-bindings* nil)
+
+;; Template path of the widget being built, in an atom, while a view is
+;; being built
+(def *build-path* nil)
+
+;; True while building the children of a UIData, which are built whether
+;; hidden or not, as their rendered bindings depend on the row
+(def *build-hidden* false)
+
 ;; Forward decls
 (declare build-view,
-	 build-widget-tree)
+	 build-widget-tree,
+	 build-subtree)
 
 (defmulti set-widget-attribute (fn [w a v] (class v)))
 
@@ -60,6 +72,19 @@
 	     children,
 	     facets)))
 
+(defn- add-subtrees
+  "Adds the widgets for the 'facets' and 'children' trees to 'widget'"
+  [#^UIComponentBase widget facets children]
+
+  ;; Facets are essentially view fragments. We build a sub-tree for each
+  ;; facet just as we build the view itself, then we add the facet sub-tree
+  ;; to the widget.
+  (doseq [[facet-name facet-tree] facets]
+    (.put (.getFacets widget) facet-name (build-subtree facet-tree)))
+
+  (doseq [child-tree children]
+    (.add (.getChildren widget) (build-subtree child-tree))))
+
 (defn build-widget-tree
   "Build the 'widget' specified by the tag in the given 'taglib' with the 
    specified attributes. 'attributes' can be a map or a single value in which
@@ -70,24 +95,20 @@
 		children, facets]} tree,
 	#^UIComponentBase widget (.createComponent *faces-app* type)]
 
-    ;; If no id was specified, create one
-    (when-not (:id attributes)
-      (set-widget-attribute widget "id" (.createUniqueId *view-root*)))
+    (when *build-path*
+      (reset! *build-path* (:path tree)))
 
-    ;; Apply widget attributes (facets are handled separately)
+    ;; The id goes first, so the other attributes can be keyed on it. Trees
+    ;; that have been through assign-ids always have one.
+    (clj.facile.AttributeSetters/set widget "id" (or (:id attributes) 
+						      (.createUniqueId *view-root*)))
+
+    ;; Apply widget attributes (facets are handled separately); same as
+    ;; set-widget-attribute, with the dispatch cached
     (doseq [[attr val] attributes]
-      (set-widget-attribute widget (name attr) val))
+      (when-not (= "id" (name attr))
+	(clj.facile.AttributeSetters/set widget (name attr) val)))
     
-    ;; Apply facets if any. Facets are essentially view fragements. We
-    ;; build a sub-tree for each facet just as we build the view itself,
-    ;; then we add the facet sub-tree to the widget.
-    (doseq [[facet-name facet-tree] facets]
-
-      ;; First build the widget tree specified for the facet
-      (let [facet-widget (build-widget-tree facet-tree)]
-	;; Add facet to the widget
-	(.put (.getFacets widget) facet-name (first facet-widget))))
-
     ;; Add validators
     (if (not (empty? validators))
       (do
@@ -113,22 +134,186 @@
 	
 	(.setConverter widget converter)))
 
-    ;; Add children
-    (doseq [child-tree children]
-      (let [child-widget (build-widget-tree child-tree)]
-	(.add (.getChildren widget) child-widget)))
+    ;; Add facets and children
+    (if (and (not *build-hidden*) 
+	     (instance? javax.faces.component.UIData widget))
+      (binding [*build-hidden* true]
+	(add-subtrees widget facets children))
+      (add-subtrees widget facets children))
 
     ;; Return the constructed widget to the caller
     widget))
 
+(defn- hidden?
+  "Whether 'tree' is hidden as the view is built: it is in the view template
+   and its rendered attribute is false now."
+  [tree]
+
+  (let [attributes (:attributes tree)]
+    (and (not *build-hidden*)
+	 (:path tree)
+	 (contains? attributes :rendered)
+	 (= false (loop [v (:rendered attributes)]
+		    (cond
+		     (instance? clojure.lang.IDeref v) (recur (deref v))
+
+		     (instance? javax.faces.el.ValueBinding v)
+		     (.getValue #^javax.faces.el.ValueBinding v *faces-context*)
+
+		     :else v))))))
+
+(defn- subtree-version
+  "A hash of the shape of 'tree': the type, id and position of each widget in
+   it, which is the same in every JVM for as long as the template is."
+  [tree]
+
+  (hash (map (juxt :type (comp :id :attributes) :path)
+	     (tree-seq :type 
+		       (fn [t] (concat (:children t) (vals (:facets t))))
+		       tree))))
+
+(defn- build-subtree
+  "Builds the widget for 'tree', or if it is hidden a clj.facile.LazySubtree
+   that stands in for it until it is shown."
+  [tree]
+
+  (if-not (hidden? tree)
+    (build-widget-tree tree)
+    (let [{:keys [id rendered]} (:attributes tree),
+	  placeholder (clj.facile.LazySubtree. *view-id* (:path tree) 
+					       (subtree-version tree) tree)]
+      (clj.facile.AttributeSetters/set placeholder "id" id)
+      (clj.facile.AttributeSetters/set placeholder "rendered" rendered)
+      (.put (.getAttributes *view-root*) clj.facile.LazySubtree/HAS_PLACEHOLDERS true)
+      placeholder)))
+
+(defn- binding-dependencies
+  "The client ids of the widgets bound to each var, from the [widget var]
+   pairs recorded by record-binding"
+  [bindings]
+
+  (reduce (fn [deps [#^UIComponentBase widget var]]
+	    (assoc deps var 
+		   (conj (get deps var #{}) 
+			 (.getClientId widget *faces-context*))))
+	  {}
+	  bindings))
+
+(defn materialize-subtree
+  "Builds the subtree that 'placeholder', a clj.facile.LazySubtree, stands
+   in for and puts it in the placeholder's place; returns its root widget."
+  [#^clj.facile.LazySubtree placeholder tree]
+
+  (binding [*view-id* (.getViewId placeholder),
+	    *view-root* (.getViewRoot *faces-context*),
+	    *view-bindings* (atom []),
+	    *build-path* (atom nil)]
+    (let [widget (build-widget-tree tree)]
+      (.replaceWith placeholder widget)
+      (clj.facile.ViewDependencies/add *view-id* 
+				       (binding-dependencies @*view-bindings*))
+      widget)))
+
+(declare facet-segment assign-template-ids)
+
+(defn template-subtree
+  "The subtree at 'path' in the template of the view 'view-id' (\"ns/name\"),
+   or nil if the view is gone or the subtree's shape is no longer 'version'."
+  [view-id path version]
+
+  (when-let [view-var (find-var (symbol view-id))]
+    (let [view @view-var,
+	  template (if (:ids-assigned view)
+		     (:template view)
+		     (assign-template-ids (:template view))),
+	  [top & more] (seq (.split #^String path "_")),
+	  tree (reduce (fn [tree #^String segment]
+			 (if (.startsWith segment "F")
+			   (some (fn [[facet-name facet-tree]]
+				   (when (= segment (facet-segment facet-name))
+				     facet-tree))
+				 (:facets tree))
+			   (get (:children tree) (Integer/parseInt segment 36))))
+		       (get template (Integer/parseInt top 36))
+		       more)]
+      (when (and tree (= version (subtree-version tree)))
+	tree))))
+
+(defn record-binding
+  "Notes that 'widget' is bound to 'var' so that the view can be refreshed 
+   when the var changes. Only has an effect while a view is being built."
+  [widget var]
+
+  (when *view-bindings*
+    (swap! *view-bindings* conj [widget var])))
+
+(defn- facet-segment
+  "The path segment for facet 'facet-name': F, which base-36 child positions
+   never contain, then the name with anything but ASCII letters and digits
+   written as -<hex>-"
+  [facet-name]
+
+  (apply str "F" (map (fn [c]
+			(if (or (<= (int \a) (int c) (int \z))
+				(<= (int \A) (int c) (int \Z))
+				(<= (int \0) (int c) (int \9)))
+			  c
+			  (str "-" (Integer/toHexString (int c)) "-")))
+		      (name facet-name))))
+
+(defn- assign-ids
+  "Gives 'tree' and each widget in it that has no :id one derived from its
+   position in the template, e.g. \"_0_3_1\", or \"_0_3_Fheader\" for a
+   facet, and notes that position as :path. 'path' is the position of 'tree'
+   itself."
+  [tree path]
+
+  (if-not (and (map? tree) (:type tree))
+    tree
+    (let [{:keys [attributes children facets]} tree]
+      (assoc tree
+	:path path,
+	:attributes (if (:id attributes)
+		      attributes
+		      (assoc attributes :id (str "_" path))),
+	:children (into [] (map (fn [child i]
+				  (assign-ids child (str path "_" (Integer/toString i 36))))
+				children
+				(iterate inc 0))),
+	:facets (into {} (for [[facet-name facet-tree] facets]
+			   [facet-name 
+			    (assign-ids facet-tree 
+					(str path "_" (facet-segment facet-name)))]))))))
+
+(defn assign-template-ids
+  "Gives every widget in the view template 'template' that has no :id one 
+   derived from its position, so the ids of a view are the same each time 
+   it is built."
+  [template]
+
+  (into [] (map (fn [tree i]
+		  (assign-ids tree (Integer/toString i 36)))
+		template
+		(iterate inc 0))))
+
 (defn build-view 
   "Iterate over the body and build the JSF view using 'root' as the view root."
   [view,
    #^UIComponentBase root]
 
-  (doseq [component-tree (:template view)]
-    (let [component (build-widget-tree component-tree)]
-      (.add (.getChildren root) component))))
+  (binding [*view-bindings* (atom []),
+	    *build-path* (atom nil)]
+    (doseq [component-tree (if (:ids-assigned view)
+			     (:template view)
+			     (assign-template-ids (:template view)))]
+      (let [component (build-widget-tree component-tree)]
+	(.add (.getChildren root) component)))
+
+    ;; Now that the tree is complete the client ids are known; record which
+    ;; components depend on which vars
+    (clj.facile.ViewDependencies/update 
+     *view-id*
+     (binding-dependencies @*view-bindings*))))
 
 (defstruct view-struct
   :name,
@@ -172,7 +357,8 @@
 		  :id ~*view-id*,
 		  :name (str (quote ~name)),
 		  :locals (view-locals *view-id*),
-		  :template (vector ~@body),))))
+		  :template (assign-template-ids (vector ~@body)),
+		  :ids-assigned true))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; Navigation
@@ -215,17 +401,20 @@
 ;; Scoped data access/storage
 
 (defmacro defsession 
+  "Defines sym as a session binding: each HTTP session gets its own value,
+  created by evaluating value the first time the session asks for it. @sym
+  is the value of the session's ref; (session-ref sym) is the ref itself."
   [sym value]
 
-  `(let [key# (str (ns-name *ns*) "/" '~sym)]
-     (def ~sym 
-	  (proxy [clojure.lang.IDeref] []
-	    (deref []
-		   (let [current# (.getAttribute *http-session* key#)]
-		     (or current#
-			 (do
-			   (.setAttribute *http-session* key# ~value)
-			   (.getAttribute *http-session* key#)))))))))
+  `(def ~sym
+	(clj.facile.SessionBinding. (str (ns-name *ns*) "/" '~sym)
+				    (fn [] ~value))))
+
+(defn session-ref
+  "The session attribute behind a binding defined by defsession, usually a ref"
+  [#^clj.facile.SessionBinding binding]
+
+  (.ref binding))
 
 (defn view-locals
   [view-id]
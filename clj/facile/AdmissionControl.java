@@ -0,0 +1,180 @@
+package clj.facile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletConfig;
+
+/**
+ * Bounds the number of requests running through the FacileServlet, both
+ * globally and per view id. A request that finds its limit reached waits in
+ * a short queue for at most 'max-wait' milliseconds; when the queue is full,
+ * or the wait runs out, it is turned away so the servlet can answer 503.
+ *
+ * Configured with the servlet init parameters:
+ *
+ *   clj.facile.admission.max-concurrent   global limit (0 = unlimited)
+ *   clj.facile.admission.max-queue        waiting requests per limit
+ *   clj.facile.admission.max-wait         how long to wait, in milliseconds
+ *   clj.facile.admission.views            per-view limits, e.g.
+ *                                         "reports/sales:2, reports/stock:4"
+ */
+public class AdmissionControl {
+
+	static final Logger log = Logger.getLogger(AdmissionControl.class.getName());
+
+	static final String MAX_CONCURRENT = "clj.facile.admission.max-concurrent";
+	static final String MAX_QUEUE = "clj.facile.admission.max-queue";
+	static final String MAX_WAIT = "clj.facile.admission.max-wait";
+	static final String VIEWS = "clj.facile.admission.views";
+
+	static class Limit {
+
+		final String name;
+		final Semaphore permits;
+		final AtomicInteger queued = new AtomicInteger();
+		final int maxQueue;
+		final long maxWait;
+
+		Limit(final String name, final int permits, int maxQueue, long maxWait) {
+			this.name = name;
+			this.permits = new Semaphore(permits, true);
+			this.maxQueue = maxQueue;
+			this.maxWait = maxWait;
+
+			Metrics.gauge("admission." + name + ".active", new Metrics.Gauge() {
+				public long value() { return permits - Limit.this.permits.availablePermits(); }
+			});
+			Metrics.gauge("admission." + name + ".queued", new Metrics.Gauge() {
+				public long value() { return queued.get(); }
+			});
+		}
+
+		boolean acquire() throws InterruptedException {
+
+			if( permits.tryAcquire() ) {
+				Metrics.increment("admission." + name + ".admitted");
+				return true;
+			}
+
+			// Wait in line, if there's room in the line
+			try {
+				if( queued.incrementAndGet() <= maxQueue
+						&& permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS) ) {
+					Metrics.increment("admission." + name + ".admitted");
+					return true;
+				}
+			} finally {
+				queued.decrementAndGet();
+			}
+
+			Metrics.increment("admission." + name + ".rejected");
+			return false;
+		}
+
+		void release() {
+			permits.release();
+		}
+	}
+
+	/**
+	 * The limits a request holds; release once the request is done.
+	 */
+	public static class Ticket {
+
+		private final List<Limit> held = new ArrayList<Limit>(2);
+
+		public void release() {
+			for( int i=held.size()-1; i>=0; i-- )
+				held.get(i).release();
+			held.clear();
+		}
+	}
+
+	private final Limit global;
+	private final Map<String,Limit> views = new HashMap<String,Limit>();
+
+	private static int intParameter(ServletConfig config, String name, int defaultValue) {
+		final String value = config.getInitParameter(name);
+		if( null == value || value.trim().length() <= 0 )
+			return defaultValue;
+
+		return Integer.parseInt(value.trim());
+	}
+
+	private static int queue(int maxQueue, int permits) {
+		return (maxQueue >= 0) ? maxQueue : Math.max(permits, 1);
+	}
+
+	public AdmissionControl(ServletConfig config) {
+
+		final int maxConcurrent = intParameter(config, MAX_CONCURRENT, 0);
+		// Unless given, each limit queues as many requests as it admits
+		final int maxQueue = intParameter(config, MAX_QUEUE, -1);
+		final long maxWait = intParameter(config, MAX_WAIT, 100);
+
+		this.global = (maxConcurrent > 0)
+			? new Limit("global", maxConcurrent, queue(maxQueue, maxConcurrent), maxWait)
+			: null;
+
+		final String views = config.getInitParameter(VIEWS);
+		if( null != views ) {
+			for( String entry : views.split(",") ) {
+
+				final int colon = entry.lastIndexOf(':');
+				if( colon < 0 ) {
+					log.warning("Ignoring malformed admission limit: " + entry);
+					continue;
+				}
+
+				final String viewId = entry.substring(0, colon).trim();
+				final int permits;
+				try {
+					permits = Integer.parseInt(entry.substring(colon+1).trim());
+				} catch( NumberFormatException e ) {
+					log.warning("Ignoring malformed admission limit: " + entry);
+					continue;
+				}
+				this.views.put(viewId, new Limit("view." + viewId, permits, queue(maxQueue, permits), maxWait));
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return null != global || !views.isEmpty();
+	}
+
+	/**
+	 * Admit a request for 'viewId', waiting briefly if need be. Returns null
+	 * if the request should be turned away.
+	 */
+	public Ticket admit(String viewId) throws InterruptedException {
+
+		final Ticket ticket = new Ticket();
+
+		// The view's own limit first, so an expensive view waiting on itself
+		// doesn't hold a global slot
+		final Limit view = views.get(viewId);
+		if( null != view ) {
+			if( !view.acquire() )
+				return null;
+			ticket.held.add(view);
+		}
+
+		if( null != global ) {
+			if( !global.acquire() ) {
+				ticket.release();
+				return null;
+			}
+			ticket.held.add(global);
+		}
+
+		return ticket;
+	}
+}
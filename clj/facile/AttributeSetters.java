@@ -0,0 +1,190 @@
+package clj.facile;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.faces.component.UIComponent;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.MultiFn;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/**
+ * Applies component attributes for build-widget-tree. Deciding how to set
+ * an attribute means a set-widget-attribute dispatch and, for the default
+ * method, a trip through the JSF attribute map's property lookup. Both
+ * depend only on the component class, the attribute name and the class of
+ * the value, so the decision is made once for each of those and cached:
+ *
+ *   - values with a set-widget-attribute method of their own (Vars, fns,
+ *     collections, ...) go straight to that method;
+ *   - otherwise, if the component has a bean property of that name that
+ *     takes the value, its setter is called through a method handle;
+ *   - otherwise the value is put in the attribute map.
+ *
+ * Each component class holds its own setters, through a ClassValue, so the
+ * cache doesn't keep classes, or the loaders of classes defined by
+ * defcomponent, from being collected. The cache is dropped whenever a
+ * method is added to set-widget-attribute, and by FacileLoader before a
+ * namespace is (re)loaded.
+ */
+public class AttributeSetters {
+
+	interface Setter {
+		void set(UIComponent widget, String attr, Object val) throws Exception;
+	}
+
+	static class Key {
+		final String attr;
+		final Class<?> valueClass;
+		final int hash;
+
+		Key(String attr, Class<?> valueClass) {
+			this.attr = attr;
+			this.valueClass = valueClass;
+			this.hash = attr.hashCode() * 31 + (null == valueClass ? 0 : valueClass.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if( !(o instanceof Key) )
+				return false;
+			final Key k = (Key)o;
+			return valueClass == k.valueClass && attr.equals(k.attr);
+		}
+	}
+
+	static final Var setWidgetAttribute = RT.var("clj.facile", "set-widget-attribute");
+	static final Keyword DEFAULT = Keyword.intern(Symbol.intern(null, "default"));
+
+	static final Setter PUT = new Setter() {
+		@SuppressWarnings("unchecked")
+		public void set(UIComponent widget, String attr, Object val) {
+			widget.getAttributes().put(attr, val);
+		}
+	};
+
+	// Setters are called as (UIComponent, Object) -> void
+	static final MethodType SETTER = MethodType.methodType(void.class, UIComponent.class, Object.class);
+
+	private static volatile ClassValue<ConcurrentHashMap<Key,Setter>> setters = cache();
+
+	// The method table the cache was built from
+	private static volatile IPersistentMap methods;
+
+	/**
+	 * Set attribute 'attr' of 'widget' to 'val', as set-widget-attribute would.
+	 */
+	public static void set(UIComponent widget, String attr, Object val) throws Exception {
+
+		final MultiFn multi = (MultiFn)setWidgetAttribute.deref();
+		final IPersistentMap table = multi.getMethodTable();
+		if( table != methods ) {
+			clear();
+			methods = table;
+		}
+
+		final Class<?> componentClass = widget.getClass();
+		final ConcurrentHashMap<Key,Setter> cached = setters.get(componentClass);
+		final Key key = new Key(attr, (null == val) ? null : val.getClass());
+		Setter setter = cached.get(key);
+		if( null == setter ) {
+			setter = setter(multi, componentClass, key);
+			cached.put(key, setter);
+		}
+
+		setter.set(widget, attr, val);
+	}
+
+	/**
+	 * Drop the cached setters, e.g. because a namespace is about to be
+	 * (re)loaded and may redefine components or set-widget-attribute methods.
+	 */
+	public static void clear() {
+		setters = cache();
+	}
+
+	private static ClassValue<ConcurrentHashMap<Key,Setter>> cache() {
+		return new ClassValue<ConcurrentHashMap<Key,Setter>>() {
+			@Override
+			protected ConcurrentHashMap<Key,Setter> computeValue(Class<?> componentClass) {
+				return new ConcurrentHashMap<Key,Setter>();
+			}
+		};
+	}
+
+	private static Setter setter(MultiFn multi, Class<?> componentClass, Key key) throws Exception {
+
+		final IFn method = multi.getMethod(key.valueClass);
+		if( null != method && method != multi.getMethod(DEFAULT) ) {
+			return new Setter() {
+				public void set(UIComponent widget, String attr, Object val) throws Exception {
+					method.invoke(widget, attr, val);
+				}
+			};
+		}
+
+		final Method write = writeMethod(componentClass, key.attr, key.valueClass);
+		if( null != write ) {
+			final MethodHandle handle = MethodHandles.publicLookup().unreflect(write).asType(SETTER);
+			return new Setter() {
+				public void set(UIComponent widget, String attr, Object val) throws Exception {
+					try {
+						handle.invokeExact(widget, val);
+					} catch( Exception e ) {
+						throw e;
+					} catch( Error e ) {
+						throw e;
+					} catch( Throwable e ) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+
+		return PUT;
+	}
+
+	private static Method writeMethod(Class<?> componentClass, String attr, Class<?> valueClass)
+			throws Exception {
+
+		if( null == valueClass )
+			return null;
+
+		for( PropertyDescriptor pd : Introspector.getBeanInfo(componentClass).getPropertyDescriptors() ) {
+			if( !pd.getName().equals(attr) || null == pd.getWriteMethod() )
+				continue;
+
+			final Class<?> type = box(pd.getWriteMethod().getParameterTypes()[0]);
+			return type.isAssignableFrom(valueClass) ? pd.getWriteMethod() : null;
+		}
+		return null;
+	}
+
+	private static Class<?> box(Class<?> c) {
+		if( !c.isPrimitive() ) return c;
+		if( c == boolean.class ) return Boolean.class;
+		if( c == int.class ) return Integer.class;
+		if( c == long.class ) return Long.class;
+		if( c == double.class ) return Double.class;
+		if( c == float.class ) return Float.class;
+		if( c == short.class ) return Short.class;
+		if( c == byte.class ) return Byte.class;
+		if( c == char.class ) return Character.class;
+		return c;
+	}
+}
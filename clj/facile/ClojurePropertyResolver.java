@@ -1,15 +1,22 @@
 package clj.facile;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import javax.faces.context.FacesContext;
 import javax.faces.el.EvaluationException;
 import javax.faces.el.PropertyNotFoundException;
 import javax.faces.el.PropertyResolver;
 
+import clojure.lang.Agent;
 import clojure.lang.Associative;
+import clojure.lang.Atom;
 import clojure.lang.IDeref;
 import clojure.lang.Keyword;
 import clojure.lang.Namespace;
+import clojure.lang.RT;
 import clojure.lang.Ref;
 import clojure.lang.Symbol;
 import clojure.lang.Var;
@@ -17,6 +24,12 @@ import clojure.lang.Var;
 public class ClojurePropertyResolver extends PropertyResolver {
 
 	static final Logger log = Logger.getLogger(ClojurePropertyResolver.class.getName());
+
+	// Values sent to agents during the current request, by agent
+	static final String PENDING_SENDS = "clj.facile.pending-sends";
+
+	static final Var send = RT.var("clojure.core", "send");
+	static final Var constantly = RT.var("clojure.core", "constantly");
 	//
 	private PropertyResolver parent;
 
@@ -24,6 +37,33 @@ public class ClojurePropertyResolver extends PropertyResolver {
 		this.parent = parent;
 	}
 
+	/**
+	 * Whether a binding to 'o' can be set: Refs, Atoms, Agents and
+	 * AtomicReferences.
+	 */
+	static boolean isWritable(Object o) {
+		return (o instanceof Ref)
+			|| (o instanceof Atom)
+			|| (o instanceof Agent)
+			|| (o instanceof AtomicReference);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<Agent,Object> pendingSends(boolean create) {
+
+		final FacesContext ctx = FacesContext.getCurrentInstance();
+		if( null == ctx )
+			return null;
+
+		final Map<String,Object> requestMap = ctx.getExternalContext().getRequestMap();
+		Map<Agent,Object> pending = (Map<Agent,Object>)requestMap.get(PENDING_SENDS);
+		if( null == pending && create ) {
+			pending = new IdentityHashMap<Agent,Object>();
+			requestMap.put(PENDING_SENDS, pending);
+		}
+		return pending;
+	}
+
 	private Object deref(Object o) throws EvaluationException {
 
 		log.entering(this.getClass().getName(), "deref", new Object[] {o});
@@ -34,6 +74,21 @@ public class ClojurePropertyResolver extends PropertyResolver {
 				Ref ref = (Ref) o;
 				return ref.deref();
 			}
+
+			if( o instanceof Atom )
+				return ((Atom)o).deref();
+
+			// A value sent to the agent in this request isn't there until
+			// the request's transaction commits; show it rather than the old one
+			if( o instanceof Agent ) {
+				final Map<Agent,Object> pending = pendingSends(false);
+				if( null != pending && pending.containsKey(o) )
+					return pending.get(o);
+				return ((Agent)o).deref();
+			}
+
+			if( o instanceof AtomicReference )
+				return ((AtomicReference<?>)o).get();
 			
 			return o;
 			
@@ -63,6 +118,18 @@ public class ClojurePropertyResolver extends PropertyResolver {
 		
 	}
 
+	/**
+	 * A name for the ref at 'key' of 'base', for contention statistics: the
+	 * Var's name for a Var, else the key.
+	 */
+	private static String refName(Object base, Object key) {
+
+		if( base instanceof Namespace )
+			return ((Namespace)base).getName() + "/" + ClojureVariableResolver.unmangleIdent(String.valueOf(key));
+
+		return base.getClass().getSimpleName() + "." + key;
+	}
+
 	private Object parseKey(Object key) {
 
 		log.entering(this.getClass().getName(), "parseKey", key);
@@ -118,10 +185,14 @@ public class ClojurePropertyResolver extends PropertyResolver {
 				
 			}
 		
-			// Unwrap it until we either get a value that is not a Ref
+			// Unwrap it until we either get a value that is not a reference,
+			// or one we can set; a session binding stands for the session's
+			// Ref, not its value
 			while( (value instanceof IDeref)
-					&& !(value instanceof Ref) ) {
-				value = ((IDeref)value).deref(); 
+					&& !isWritable(value) ) {
+				value = (value instanceof SessionBinding)
+					? ((SessionBinding)value).ref()
+					: ((IDeref)value).deref(); 
 			}
 			
 		} catch( PropertyNotFoundException e ) {
@@ -151,7 +222,9 @@ public class ClojurePropertyResolver extends PropertyResolver {
 
 		log.entering(this.getClass().getName(), "getType");
 
-		final Class c = deref(resolve(base, key)).getClass();;
+		// The type of the current value; anything will do in place of nil
+		final Object value = deref(resolve(base, key));
+		final Class<?> c = (null == value) ? Object.class : value.getClass();
 		
 		log.finest("class=" + c);
 		log.exiting(this.getClass().getName(), "getType");
@@ -174,7 +247,7 @@ public class ClojurePropertyResolver extends PropertyResolver {
 		log.entering(this.getClass().getName(), "isReadOnly", new Object[] { base, key });
 
 		final Object value = resolve(base,key);
-		final boolean readOnly = !(value instanceof Ref);
+		final boolean readOnly = !isWritable(value);
 
 		log.exiting(this.getClass().getName(), "isReadOnly", readOnly);
 		return readOnly;
@@ -208,7 +281,7 @@ public class ClojurePropertyResolver extends PropertyResolver {
 		parent.setValue(base, index, val);
 	}
 
-	@SuppressWarnings("serial")
+	@SuppressWarnings("unchecked")
 	@Override
 	public void setValue(Object base, Object key, Object val)
 			throws EvaluationException, PropertyNotFoundException {
@@ -218,14 +291,33 @@ public class ClojurePropertyResolver extends PropertyResolver {
 
 		Object target = resolve(base, key);
 		try {
-			// It is only legal to set refs
-			if (!(target instanceof Ref))
-				throw new IllegalArgumentException(
-						"Values are immutable. Can only set a Ref");
+			// It is only legal to set references
+			if( target instanceof Ref ) {
+
+				// Set the value in a transaction
+				final Ref ref = (Ref)target;
+				Contention.writing(refName(base, key));
+				ref.set(val);
+
+			} else if( target instanceof Atom ) {
+
+				// Outside of the transaction: not undone if it retries
+				((Atom)target).reset(val);
 
-			// Set the value in a transaction
-			final Ref ref = (Ref)target;
-			ref.set(val);
+			} else if( target instanceof Agent ) {
+
+				// Dispatched when the request's transaction commits
+				send.invoke(target, constantly.invoke(val));
+				pendingSends(true).put((Agent)target, val);
+
+			} else if( target instanceof AtomicReference ) {
+
+				((AtomicReference<Object>)target).set(val);
+
+			} else {
+				throw new IllegalArgumentException(
+						"Values are immutable. Can only set a Ref, Atom, Agent or AtomicReference");
+			}
 			
 			log.exiting(this.getClass().getName(), "setValue");
 			
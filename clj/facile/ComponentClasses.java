@@ -0,0 +1,221 @@
+package clj.facile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.faces.FactoryFinder;
+
+/**
+ * The component classes generated by clj.facile.widget/defcomponent, defined
+ * in memory. Each definition is keyed by a hash of its source: defining an
+ * unchanged component again reuses the class already loaded, and a changed
+ * one gets a fresh class loader, since a loader can't define a class twice.
+ *
+ * loader() finds the current version of each class by name; FacileServlet
+ * makes it the context class loader so JSF can instantiate and restore
+ * components. Nothing is written to disk unless save() is asked to. The JVM
+ * remembers which class a loader gave for a name, so a changed definition
+ * retires the loaders handed out so far, and loader() hands out new ones.
+ *
+ * JSF keys its factories by the context class loader, so the loader
+ * FacileServlet installs is equal to the one it replaces. The plain loader
+ * can't be made equal to it in turn, so the factories are looked up under
+ * the plain loader before its stand-in is first handed out: JSF then only
+ * ever stores them under the plain loader, and finds them from either.
+ */
+public class ComponentClasses {
+
+	static final Logger log = Logger.getLogger(ComponentClasses.class.getName());
+
+	static class Definition {
+		final String hash;
+		final byte[] bytecode;
+		final Class<?> clazz;
+
+		Definition(String hash, byte[] bytecode, Class<?> clazz) {
+			this.hash = hash;
+			this.bytecode = bytecode;
+			this.clazz = clazz;
+		}
+	}
+
+	private static final Map<String,Definition> definitions = new ConcurrentHashMap<String,Definition>();
+
+	/**
+	 * Finds defined components before looking anywhere else, so a stale
+	 * .class file on the classpath can't shadow the current definition.
+	 */
+	private static class ComponentLoader extends ClassLoader {
+		ComponentLoader() {
+			super(ComponentClasses.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			final Definition definition = definitions.get(name);
+			if( null != definition )
+				return definition.clazz;
+
+			return super.loadClass(name, resolve);
+		}
+	}
+
+	private static volatile ClassLoader loader = new ComponentLoader();
+
+	/**
+	 * Defines a single version of a single class.
+	 */
+	private static class DefiningLoader extends ClassLoader {
+		DefiningLoader() {
+			super(loader);
+		}
+
+		Class<?> define(String name, byte[] bytecode) {
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+
+	/**
+	 * Finds defined components, then asks the context class loader it
+	 * stands in for, which it is equal to.
+	 */
+	private static class ContextLoader extends ClassLoader {
+		private final ClassLoader context;
+
+		ContextLoader(ClassLoader context) {
+			super(context);
+			this.context = context;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			final Definition definition = definitions.get(name);
+			if( null != definition )
+				return definition.clazz;
+
+			return super.loadClass(name, resolve);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof ClassLoader) && unwrap((ClassLoader)o) == context;
+		}
+
+		@Override
+		public int hashCode() {
+			return context.hashCode();
+		}
+	}
+
+	/**
+	 * The context class loader 'loader' stands in for, or 'loader' itself.
+	 */
+	static ClassLoader unwrap(ClassLoader loader) {
+		return (loader instanceof ContextLoader) ? ((ContextLoader)loader).context : loader;
+	}
+
+	private static final Map<ClassLoader,ClassLoader> contextLoaders = new ConcurrentHashMap<ClassLoader,ClassLoader>();
+
+	/**
+	 * The loader to make the context class loader in place of 'context',
+	 * the thread's current one.
+	 */
+	public static ClassLoader loader(ClassLoader context) {
+
+		if( null == context )
+			return loader;
+		if( context instanceof ContextLoader )
+			return context;
+
+		ClassLoader contextLoader = contextLoaders.get(context);
+		if( null == contextLoader ) {
+			// Called with 'context' as the context class loader, so that
+			// JSF keeps its factories under it and not under the stand-in
+			try {
+				FactoryFinder.getFactory(FactoryFinder.APPLICATION_FACTORY);
+			} catch( IllegalStateException e ) {
+				// Not a JSF application (yet)
+			}
+			contextLoaders.putIfAbsent(context, new ContextLoader(context));
+			contextLoader = contextLoaders.get(context);
+		}
+		return contextLoader;
+	}
+
+	/**
+	 * A hash of a component's definition.
+	 */
+	public static String hash(String definition) {
+		try {
+			return Stylesheets.hash(definition.getBytes("UTF-8"));
+		} catch( UnsupportedEncodingException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * True if class 'name' is defined, from a definition hashing to 'hash'.
+	 */
+	public static boolean isDefined(String name, String hash) {
+		final Definition definition = definitions.get(name);
+		return null != definition && definition.hash.equals(hash);
+	}
+
+	/**
+	 * Define class 'name' from 'bytecode', unless the definition hashing to
+	 * 'hash' already is.
+	 */
+	public static synchronized Class<?> define(String name, String hash, byte[] bytecode) {
+
+		final Definition current = definitions.get(name);
+		if( null != current && current.hash.equals(hash) )
+			return current.clazz;
+
+		final Class<?> clazz = new DefiningLoader().define(name, bytecode);
+		definitions.put(name, new Definition(hash, bytecode, clazz));
+
+		// The loaders handed out so far may have given the old class
+		if( null != current ) {
+			loader = new ComponentLoader();
+			contextLoaders.clear();
+		}
+
+		log.fine("Defined " + name + " (" + hash + ")");
+		return clazz;
+	}
+
+	/**
+	 * The current version of class 'name', or null if it isn't defined.
+	 */
+	public static Class<?> forName(String name) {
+		final Definition definition = definitions.get(name);
+		return (null != definition) ? definition.clazz : null;
+	}
+
+	/**
+	 * Write the bytecode of every defined class to a .class file under
+	 * 'directory', e.g. WEB-INF/classes, for deployment without generating
+	 * classes at run time.
+	 */
+	public static void save(File directory) throws IOException {
+
+		for( Map.Entry<String,Definition> e : definitions.entrySet() ) {
+			final File file = new File(directory, e.getKey().replace('.', File.separatorChar) + ".class");
+			file.getParentFile().mkdirs();
+
+			final FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(e.getValue().bytecode);
+			} finally {
+				out.close();
+			}
+
+			log.fine("Saved " + e.getKey() + " to " + file);
+		}
+	}
+}
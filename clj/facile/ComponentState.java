@@ -0,0 +1,87 @@
+package clj.facile;
+
+import java.util.Arrays;
+
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.el.ValueBinding;
+
+/**
+ * The attribute values of a component generated by defcomponent, one slot
+ * per attribute. A component belongs to a single request, so the slots are
+ * plain array elements: no refs, no transactions.
+ *
+ * The value binding of each slot is cached the first time it is found.
+ * Replacing a binding that has already been used (setValueBinding with the
+ * same name) is therefore not seen by the getter; bindings are set while the
+ * view is built or restored, before any getter runs.
+ *
+ * The slots are saved with the component's state, tagged with the version
+ * of the definition (a hash of it) that numbered them; a component restored
+ * from a state saved by another version starts with empty slots.
+ */
+public class ComponentState {
+
+	private final Object[] values;
+	private final ValueBinding[] bindings;
+	private final int version;
+
+	public ComponentState(int size, int version) {
+		this.values = new Object[size];
+		this.bindings = new ValueBinding[size];
+		this.version = version;
+	}
+
+	public Object get(int slot) {
+		return values[slot];
+	}
+
+	public void set(int slot, Object value) {
+		values[slot] = value;
+	}
+
+	/**
+	 * The value of attribute 'name' in 'slot': the value set, or if none
+	 * (or false), that of the attribute's value binding.
+	 */
+	public Object value(UIComponent component, int slot, String name) {
+
+		final Object value = values[slot];
+		if( null != value && !Boolean.FALSE.equals(value) )
+			return value;
+
+		ValueBinding vb = bindings[slot];
+		if( null == vb ) {
+			vb = component.getValueBinding(name);
+			if( null == vb )
+				return null;
+			bindings[slot] = vb;
+		}
+
+		return vb.getValue(FacesContext.getCurrentInstance());
+	}
+
+	/**
+	 * The state to save: 'superState', that of the component's superclass,
+	 * and the slots.
+	 */
+	public Object save(Object superState) {
+		return new Object[] { superState, Integer.valueOf(version), values.clone() };
+	}
+
+	/**
+	 * Restore the slots from 'state', as returned by save(); returns the
+	 * superclass's state. Bindings are found again, as they are restored
+	 * with it.
+	 */
+	public Object restore(Object state) {
+
+		final Object[] saved = (Object[])state;
+		final Object[] slots = (Object[])saved[2];
+		if( ((Integer)saved[1]).intValue() == version && slots.length == values.length )
+			System.arraycopy(slots, 0, values, 0, values.length);
+		Arrays.fill(bindings, null);
+
+		return saved[0];
+	}
+}
@@ -0,0 +1,123 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that can splice in blocks compressed ahead of time (see
+ * Precompressed). Before a splice the stream is fully flushed, so nothing
+ * compressed after it refers back past the spliced block, and the block
+ * itself was compressed on its own; the result is a single valid gzip member.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+	private static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] buf = new byte[8192];
+	private long size;
+	private boolean started;
+	private boolean finished;
+
+	public CompressingOutputStream(OutputStream out, int level) {
+		this.out = out;
+		this.deflater = new Deflater(level, true);
+	}
+
+	private void start() throws IOException {
+		if( finished )
+			throw new IOException("Stream finished");
+		if( !started ) {
+			out.write(HEADER);
+			started = true;
+		}
+	}
+
+	private void drain(int flush) throws IOException {
+		int n;
+		do {
+			n = deflater.deflate(buf, 0, buf.length, flush);
+			if( n > 0 )
+				out.write(buf, 0, n);
+		} while( n == buf.length );
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if( len == 0 )
+			return;
+
+		start();
+		crc.update(b, off, len);
+		size += len;
+
+		deflater.setInput(b, off, len);
+		while( !deflater.needsInput() )
+			drain(Deflater.NO_FLUSH);
+	}
+
+	/**
+	 * Write 'fragment', encoded in 'charset', without compressing it again.
+	 */
+	public void splice(Precompressed fragment, String charset) throws IOException {
+		final Precompressed.Encoded encoded = fragment.encoded(charset);
+
+		start();
+		drain(Deflater.FULL_FLUSH);
+		out.write(encoded.deflated);
+		crc.update(encoded.raw, 0, encoded.raw.length);
+		size += encoded.raw.length;
+	}
+
+	/**
+	 * Passes on what has been compressed so far; doesn't force out what the
+	 * compressor is holding on to.
+	 */
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Write the end of the gzip stream, without closing the underlying one.
+	 */
+	public void finish() throws IOException {
+		if( finished )
+			return;
+		start();
+
+		deflater.finish();
+		while( !deflater.finished() ) {
+			final int n = deflater.deflate(buf);
+			out.write(buf, 0, n);
+		}
+		deflater.end();
+		finished = true;
+
+		writeInt((int)crc.getValue());
+		writeInt((int)size);
+		out.flush();
+	}
+
+	private void writeInt(int i) throws IOException {
+		out.write(i & 0xff);
+		out.write((i >>> 8) & 0xff);
+		out.write((i >>> 16) & 0xff);
+		out.write((i >>> 24) & 0xff);
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+}
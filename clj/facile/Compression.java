@@ -0,0 +1,126 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.faces.context.ResponseWriter;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzip compression of rendered responses, for clients that accept it. Set
+ * the context parameter clj.facile.compression to true to turn it on, and
+ * clj.facile.compression.level to a zlib level (default 6).
+ */
+public class Compression {
+
+	public static final String ENABLED = "clj.facile.compression";
+	public static final String LEVEL = "clj.facile.compression.level";
+
+	static final String STREAM = "clj.facile.compression.stream";
+	static final String WRITER = "clj.facile.compression.writer";
+
+	static final int DEFAULT_LEVEL = 6;
+
+	/**
+	 * Whether an Accept-Encoding header admits gzip
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if( null == acceptEncoding )
+			return false;
+
+		for( String coding : acceptEncoding.split(",") ) {
+			final String[] parts = coding.trim().split(";");
+			final String name = parts[0].trim();
+			if( !"gzip".equalsIgnoreCase(name) && !"*".equals(name) )
+				continue;
+
+			for( int i = 1; i < parts.length; i++ ) {
+				final String param = parts[i].trim();
+				if( param.startsWith("q=") ) {
+					try {
+						return Double.parseDouble(param.substring(2)) > 0;
+					} catch( NumberFormatException e ) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The stream to render the response to: 'os' itself, or a gzip stream on
+	 * top of it if compression is on and the client accepts it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static OutputStream wrap(FacesContext ctx, HttpServletResponse response, OutputStream os) {
+
+		final ExternalContext extCtx = ctx.getExternalContext();
+		if( !Boolean.valueOf(extCtx.getInitParameter(ENABLED)) )
+			return os;
+
+		response.addHeader("Vary", "Accept-Encoding");
+		if( !acceptsGzip((String)extCtx.getRequestHeaderMap().get("Accept-Encoding")) )
+			return os;
+
+		final String level = extCtx.getInitParameter(LEVEL);
+		final CompressingOutputStream gzip = new CompressingOutputStream(os,
+				(null == level) ? DEFAULT_LEVEL : clampLevel(Integer.parseInt(level.trim())));
+		response.setHeader("Content-Encoding", "gzip");
+		extCtx.getRequestMap().put(STREAM, gzip);
+		return gzip;
+	}
+
+	/**
+	 * Note the writer that writes to the stream returned by wrap; fragments
+	 * written with any other writer (e.g. into a buffer) are written as text.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void setWriter(FacesContext ctx, ResponseWriter writer) {
+		final Map<String,Object> requestMap = ctx.getExternalContext().getRequestMap();
+		if( requestMap.containsKey(STREAM) )
+			requestMap.put(WRITER, writer);
+	}
+
+	/**
+	 * Write 'fragment' to the current response, splicing it in as is if the
+	 * response is compressed.
+	 */
+	public static void write(FacesContext ctx, Precompressed fragment) throws IOException {
+
+		final ResponseWriter writer = ctx.getResponseWriter();
+		final Map<?,?> requestMap = ctx.getExternalContext().getRequestMap();
+		final CompressingOutputStream gzip = (CompressingOutputStream)requestMap.get(STREAM);
+
+		if( null == gzip || writer != requestMap.get(WRITER) ) {
+			writer.write(fragment.getMarkup());
+			return;
+		}
+
+		// Push what the writer holds into the stream first
+		writer.flush();
+		gzip.splice(fragment, writer.getCharacterEncoding());
+	}
+
+	/**
+	 * End the compressed stream, if any, once the response is written.
+	 */
+	public static void finish(FacesContext ctx) throws IOException {
+
+		final CompressingOutputStream gzip = (CompressingOutputStream)ctx.getExternalContext().getRequestMap().get(STREAM);
+		if( null == gzip )
+			return;
+
+		ctx.getResponseWriter().flush();
+		gzip.finish();
+	}
+
+	static int clampLevel(int level) {
+		return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+	}
+}
@@ -0,0 +1,155 @@
+package clj.facile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Counts the STM transaction attempts of each request, and blames retries
+ * on the refs the request wrote through ClojurePropertyResolver. A write
+ * conflict aborts the attempt while it sets a ref, so the last ref an attempt
+ * set before being retried is taken to be the one that conflicted.
+ *
+ * Counters kept in Metrics:
+ *   stm.requests, stm.attempts, stm.retries
+ *   stm.resumes                  transactions resuming a pending action,
+ *                                counted apart from the request they resume
+ *   stm.retries.view.<view id>   retries of requests for the view
+ *   stm.retries.ref.<name>       retries blamed on the ref
+ */
+public class Contention {
+
+	static final Logger log = Logger.getLogger(Contention.class.getName());
+
+	static final String VIEW_PREFIX = "stm.retries.view.";
+	static final String REF_PREFIX = "stm.retries.ref.";
+
+	private static class Request {
+		final String viewId;
+		final boolean resumed;
+		int attempts;
+		String lastWrite;
+		List<String> conflicts;
+
+		Request(String viewId, boolean resumed) {
+			this.viewId = viewId;
+			this.resumed = resumed;
+		}
+	}
+
+	private static final ThreadLocal<Request> current = new ThreadLocal<Request>();
+	private static final AtomicLong retried = new AtomicLong();
+
+	// Log one in this many retried requests; 0 for none
+	private static volatile int logSample = 100;
+
+	public static void setLogSample(int n) {
+		logSample = n;
+	}
+
+	/**
+	 * Start counting for a request, or for the transaction that resumes
+	 * its pending action if 'resumed'; returns false if one is already
+	 * being counted on this thread.
+	 */
+	public static boolean begin(String viewId, boolean resumed) {
+		if( null != current.get() )
+			return false;
+		current.set(new Request(viewId, resumed));
+		return true;
+	}
+
+	/**
+	 * Called at the start of each attempt at the request's transaction.
+	 */
+	public static void attempt() {
+
+		final Request req = current.get();
+		if( null == req )
+			return;
+
+		req.attempts++;
+		if( req.attempts > 1 ) {
+			// A conflict outside of our writes, e.g. a read fault
+			final String blamed = (null == req.lastWrite) ? "(read)" : req.lastWrite;
+			Metrics.increment(REF_PREFIX + blamed);
+
+			if( null == req.conflicts )
+				req.conflicts = new ArrayList<String>();
+			req.conflicts.add(blamed);
+		}
+		req.lastWrite = null;
+	}
+
+	/**
+	 * Called before a ref named 'name' is set.
+	 */
+	public static void writing(String name) {
+		final Request req = current.get();
+		if( null != req )
+			req.lastWrite = name;
+	}
+
+	/**
+	 * Stop counting, recording the request's attempts.
+	 */
+	public static void end() {
+
+		final Request req = current.get();
+		current.remove();
+		if( null == req || req.attempts == 0 )
+			return;
+
+		final int retries = req.attempts - 1;
+		Metrics.increment(req.resumed ? "stm.resumes" : "stm.requests");
+		Metrics.add("stm.attempts", req.attempts);
+		if( retries > 0 ) {
+			Metrics.add("stm.retries", retries);
+			Metrics.add(VIEW_PREFIX + req.viewId, retries);
+
+			final int sample = logSample;
+			if( sample > 0 && retried.incrementAndGet() % sample == 0 )
+				log.info("Request for " + req.viewId + " took " + req.attempts
+						 + " attempts, conflicting on " + req.conflicts);
+		}
+	}
+
+	/**
+	 * The 'n' views and refs with the most retries, for the log.
+	 */
+	public static String summary(int n) {
+
+		final List<Map.Entry<String,Long>> views = new ArrayList<Map.Entry<String,Long>>();
+		final List<Map.Entry<String,Long>> refs = new ArrayList<Map.Entry<String,Long>>();
+		for( Map.Entry<String,Long> e : Metrics.snapshot().entrySet() ) {
+			if( e.getKey().startsWith(VIEW_PREFIX) )
+				views.add(e);
+			else if( e.getKey().startsWith(REF_PREFIX) )
+				refs.add(e);
+		}
+
+		final StringBuilder s = new StringBuilder("STM retries by view:");
+		top(s, views, VIEW_PREFIX.length(), n);
+		s.append("\nSTM retries by ref:");
+		top(s, refs, REF_PREFIX.length(), n);
+		return s.toString();
+	}
+
+	private static void top(StringBuilder s, List<Map.Entry<String,Long>> entries, int prefix, int n) {
+
+		Collections.sort(entries, new Comparator<Map.Entry<String,Long>>() {
+			public int compare(Map.Entry<String,Long> a, Map.Entry<String,Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		if( entries.isEmpty() )
+			s.append(" none");
+		for( Map.Entry<String,Long> e : entries.subList(0, Math.min(n, entries.size())) )
+			s.append("\n  ").append(e.getKey().substring(prefix)).append(' ').append(e.getValue());
+	}
+}
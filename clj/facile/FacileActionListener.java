@@ -0,0 +1,188 @@
+package clj.facile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.faces.FacesException;
+import javax.faces.component.ActionSource;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+import javax.faces.el.EvaluationException;
+import javax.faces.el.MethodBinding;
+import javax.faces.el.MethodNotFoundException;
+import javax.faces.event.AbortProcessingException;
+import javax.faces.event.ActionEvent;
+import javax.faces.event.ActionListener;
+
+import clojure.lang.IDeref;
+import clojure.lang.IRef;
+
+/**
+ * Default action listener. Behaves like the standard one except that an
+ * action may return a future, promise or delay instead of an outcome:
+ * navigation (and therefore rendering) resumes once it has been delivered.
+ *
+ * Under FacileServlet the request's transaction ends with the action; the
+ * servlet waits for the result outside of it and then renders in a new one,
+ * so that neither the wait holds the transaction open nor a retry runs the
+ * action again while it waits. Elsewhere we wait in place.
+ *
+ * How long we wait is set by the context parameter
+ * 'clj.facile.action-timeout' in milliseconds, 30 seconds by default; 0
+ * waits for as long as it takes.
+ */
+public class FacileActionListener implements ActionListener {
+
+	static final Logger log = Logger.getLogger(FacileActionListener.class.getName());
+
+	static final String ACTION_TIMEOUT = "clj.facile.action-timeout";
+	static final long DEFAULT_ACTION_TIMEOUT = 30000;
+
+	// Request attribute set by a servlet that resumes pending actions
+	static final String RESUMES = "clj.facile.resumes-actions";
+	// Request attribute holding the action left pending
+	static final String PENDING = "clj.facile.pending-action";
+
+	// Promises and delays can't be waited on for a while only
+	private static final ExecutorService derefs = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "clj.facile pending action");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The timeout in milliseconds set by 'value', the action-timeout
+	 * parameter; 0 for none.
+	 */
+	static long timeout(String value) {
+		if( null == value || value.trim().length() <= 0 )
+			return DEFAULT_ACTION_TIMEOUT;
+
+		return Math.max(0, Long.parseLong(value.trim()));
+	}
+
+	/**
+	 * Whether an action's 'result' is yet to be delivered. Refs, atoms and
+	 * vars are values, not pending results.
+	 */
+	private static boolean isPending(Object result) {
+		if( result instanceof Future )
+			return !((Future<?>)result).isDone();
+
+		return (result instanceof IDeref) && !(result instanceof IRef);
+	}
+
+	/**
+	 * An action whose result was pending when it returned, with the view it
+	 * was invoked from.
+	 */
+	public static class Pending {
+		private final Object result;
+		private final String fromAction;
+		private final UIViewRoot view;
+
+		Pending(Object result, String fromAction, UIViewRoot view) {
+			this.result = result;
+			this.fromAction = fromAction;
+			this.view = view;
+		}
+
+		public String getFromAction() {
+			return fromAction;
+		}
+
+		/**
+		 * The result once delivered, waiting at most 'timeout' milliseconds (0
+		 * for no limit); throws TimeoutException past it.
+		 */
+		public Object await(long timeout) throws Exception {
+
+			final Future<?> future;
+			if( result instanceof Future ) {
+				future = (Future<?>)result;
+			} else {
+				final IDeref ref = (IDeref)result;
+				future = derefs.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						return ref.deref();
+					}
+				});
+			}
+
+			try {
+				return (timeout <= 0)
+					? future.get()
+					: future.get(timeout, TimeUnit.MILLISECONDS);
+			} finally {
+				// Stop waiting on a promise; a future is the action's own
+				if( future != result )
+					future.cancel(true);
+			}
+		}
+
+		/**
+		 * Navigate on the delivered 'value' from the view in 'ctx'.
+		 */
+		public void navigate(FacesContext ctx, Object value) {
+			ctx.setViewRoot(view);
+			ctx.getApplication().getNavigationHandler().handleNavigation(ctx, fromAction,
+					(null == value) ? null : value.toString());
+			ctx.renderResponse();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void processAction(ActionEvent ev) throws AbortProcessingException {
+
+		log.entering(FacileActionListener.class.getName(), "processAction", ev);
+
+		final FacesContext ctx = FacesContext.getCurrentInstance();
+		final ActionSource source = (ActionSource)ev.getComponent();
+		final MethodBinding binding = source.getAction();
+
+		String fromAction = null;
+		Object result = null;
+
+		if( null != binding ) {
+			fromAction = binding.getExpressionString();
+			try {
+				result = binding.invoke(ctx, null);
+			} catch( MethodNotFoundException e ) {
+				throw new FacesException(fromAction + ": " + e.getMessage(), e);
+			} catch( EvaluationException e ) {
+				throw new FacesException(fromAction + ": " + e.getMessage(), e);
+			}
+		}
+
+		if( isPending(result) && ctx.getExternalContext().getRequestMap().containsKey(RESUMES) ) {
+			// The servlet takes over once the transaction has ended
+			ctx.getExternalContext().getRequestMap().put(PENDING,
+					new Pending(result, fromAction, ctx.getViewRoot()));
+			ctx.responseComplete();
+
+			log.exiting(FacileActionListener.class.getName(), "processAction", PENDING);
+			return;
+		}
+
+		final Pending pending = new Pending(result, fromAction, ctx.getViewRoot());
+		Object value = result;
+		if( result instanceof Future || isPending(result) ) {
+			try {
+				value = pending.await(timeout(ctx.getExternalContext().getInitParameter(ACTION_TIMEOUT)));
+			} catch( Exception e ) {
+				throw new FacesException("Caught exception while waiting on " + fromAction, e);
+			}
+		}
+		pending.navigate(ctx, value);
+
+		log.exiting(FacileActionListener.class.getName(), "processAction", value);
+	}
+
+}
@@ -47,6 +47,15 @@ public class FacileLoader {
 		return realPath;
 	}
 	
+	/**
+	 * The modification time of 'filePath' when it was last loaded, or -1 if
+	 * it hasn't been loaded.
+	 */
+	public static long getStamp( String filePath ) {
+		final Long stamp = fileStamps.get(filePath);
+		return (null != stamp) ? stamp.longValue() : -1;
+	}
+	
 	public static boolean isDirty( ServletContext ctx, String qualifiedSymbol ) {
 		return isDirty(getPath(ctx,qualifiedSymbol));
 	}
@@ -103,6 +112,11 @@ public class FacileLoader {
 
 			log.finest("current_ns=" + current_ns.get() + ", warn_on_reflection=" + warn_on_reflection.get() + ", use_context_classloader=" + use_context_classloader.get());
 			
+			// Stylesheets are collected afresh as the namespace loads
+			Stylesheets.clear(namespace(qualifiedSymbol));
+			// and attribute setters found afresh for the classes it defines
+			AttributeSetters.clear();
+			
 			clojure.lang.Compiler.load( 
 					new java.io.InputStreamReader( new FileInputStream(file) ),	// reader
 					filePath.substring(0, filePath.lastIndexOf(File.separator)),
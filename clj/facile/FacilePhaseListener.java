@@ -10,6 +10,7 @@ import javax.faces.event.PhaseEvent;
 import javax.faces.event.PhaseId;
 import javax.faces.event.PhaseListener;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
 
 import clojure.lang.RT;
 import clojure.lang.Var;
@@ -18,6 +19,8 @@ public class FacilePhaseListener implements PhaseListener {
 
 	static final Logger log = Logger.getLogger(FacilePhaseListener.class.getName());
 
+	private static final long serialVersionUID = 1L;
+
 	// Clojure fields ////////////////////////////////////////////////////////
 
 	static final Var compileFlag = RT.var("clojure.core", "*compile-files*");
@@ -35,6 +38,9 @@ public class FacilePhaseListener implements PhaseListener {
 	static final Var headerMap = RT.var("clj.facile", "*headers*");
 	static final Var headerMultiMap = RT.var("clj.facile", "*headers-multi*");
 
+	// Request attribute set while the request's bindings are pushed
+	static final String PUSHED = "clj.facile.bindings-pushed";
+
 	protected void pushBindings(final FacesContext ctx) {
 		
 		log.entering(FacilePhaseListener.class.getName(), "pushBindings", ctx); 
@@ -73,22 +79,42 @@ public class FacilePhaseListener implements PhaseListener {
 		log.exiting(FacilePhaseListener.class.getName(), "popBindings");
 	}
 	
+	@SuppressWarnings("unchecked")
 	public void beforePhase(PhaseEvent ev) {
-		
-		if( ev.getPhaseId().compareTo(PhaseId.RESTORE_VIEW) == 0 ) {
-			
-			pushBindings(ev.getFacesContext());
-			
+
+		final FacesContext ctx = ev.getFacesContext();
+		final PhaseId phase = ev.getPhaseId();
+
+		// A request resumed after a pending action starts at rendering
+		if( (phase.compareTo(PhaseId.RESTORE_VIEW) == 0 || phase.compareTo(PhaseId.RENDER_RESPONSE) == 0)
+				&& !ctx.getExternalContext().getRequestMap().containsKey(PUSHED) ) {
+
+			pushBindings(ctx);
+			ctx.getExternalContext().getRequestMap().put(PUSHED, Boolean.TRUE);
 		}
-		
 	}
 
 	public void afterPhase(PhaseEvent ev) {
 
-		if( ev.getPhaseId().compareTo(PhaseId.RENDER_RESPONSE) == 0 ) {
-		
+		final FacesContext ctx = ev.getFacesContext();
+
+		// The lifecycle stops after a phase that completes the response
+		if( (ev.getPhaseId().compareTo(PhaseId.RENDER_RESPONSE) == 0 || ctx.getResponseComplete())
+				&& null != ctx.getExternalContext().getRequestMap().remove(PUSHED) ) {
+
 			popBindings();
-			
+		}
+	}
+
+	/**
+	 * Pops the bindings of a request whose lifecycle ended before its last
+	 * phase did, e.g. on an exception or an STM retry.
+	 */
+	public static void unwind(ServletRequest request) {
+
+		if( null != request.getAttribute(PUSHED) ) {
+			request.removeAttribute(PUSHED);
+			Var.popThreadBindings();
 		}
 	}
 
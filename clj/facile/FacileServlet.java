@@ -1,14 +1,40 @@
 package clj.facile;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.faces.FactoryFinder;
+import javax.faces.context.FacesContext;
+import javax.faces.context.FacesContextFactory;
+import javax.faces.lifecycle.Lifecycle;
+import javax.faces.lifecycle.LifecycleFactory;
 import javax.faces.webapp.FacesServlet;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import clojure.lang.AFn;
@@ -18,18 +44,197 @@ import clojure.lang.RT;
 import clojure.lang.Var;
 
 public class FacileServlet extends HttpServlet {
-	   
+
+	static final Logger log = Logger.getLogger(FacileServlet.class.getName());
+
+	private static final long serialVersionUID = 1L;
+
+	// Init parameters ///////////////////////////////////////////////////////
+
+	// Run requests on our own executor rather than the container's thread
+	static final String ASYNC = "clj.facile.async";
+	// Size of the executor, or "virtual" for a thread per request on JDKs
+	// with virtual threads
+	static final String ASYNC_THREADS = "clj.facile.async.threads";
+	// Requests the executor holds while its threads are busy, by default as
+	// many as it has threads; past it requests are turned away
+	static final String ASYNC_QUEUE = "clj.facile.async.queue";
+	// Async timeout in milliseconds; 0 means no timeout
+	static final String ASYNC_TIMEOUT = "clj.facile.async.timeout";
+	// Seconds a turned away client should wait before trying again
+	static final String RETRY_AFTER = "clj.facile.admission.retry-after";
+	// Answer GETs with an ETag and honour If-None-Match
+	static final String CONDITIONAL_GET = "clj.facile.conditional-get";
+	// Directory of a FileSessionStore to save sessions to after each request
+	static final String SESSION_STORE = "clj.facile.session.store";
+	// Log one in this many requests that had to retry their transaction
+	static final String STM_LOG_SAMPLE = "clj.facile.stm.log-sample";
+
+	// MyFaces' error page would catch the STM's retries before they reached
+	// the transaction, which would then carry on half done
+	static final String MYFACES_ERROR_HANDLING = "org.apache.myfaces.ERROR_HANDLING";
+
+	static final String RETRY = "clojure.lang.LockingTransaction$RetryEx";
+
 	private FacesServlet facesServlet;
-	
+	private ExecutorService executor;
+	private long asyncTimeout;
+	private long actionTimeout;
+	private FacesContextFactory facesContextFactory;
+	private Lifecycle lifecycle;
+	private AdmissionControl admission;
+	private String retryAfter;
+	private boolean conditionalGet;
+	private FileSessionStore sessionStore;
+
+	/**
+	 * The view id ("ns/sym") a request is for, taken from the path info when
+	 * mapped by prefix, or the servlet path less its extension when mapped by
+	 * extension.
+	 */
+	static String viewId(ServletRequest request) {
+
+		final HttpServletRequest req = (HttpServletRequest)request;
+		String path = req.getPathInfo();
+		if( null == path ) {
+			path = req.getServletPath();
+
+			final int dot = path.lastIndexOf('.');
+			if( dot > path.lastIndexOf('/') )
+				path = path.substring(0, dot);
+		}
+
+		return path.startsWith("/") ? path.substring(1) : path;
+	}
+
+	private static ExecutorService createExecutor(String threads, String queue) throws ServletException {
+
+		if( null != threads && "virtual".equals(threads.trim()) ) {
+			try {
+				final Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)virtual.invoke(null);
+			} catch( Exception e ) {
+				throw new ServletException("Virtual threads are not available on this JVM", e);
+			}
+		}
+
+		final int n = (null == threads || threads.trim().length() <= 0)
+			? 2 * Runtime.getRuntime().availableProcessors()
+			: Integer.parseInt(threads.trim());
+		final int capacity = (null == queue || queue.trim().length() <= 0)
+			? n
+			: Integer.parseInt(queue.trim());
+
+		// Bounded, so that a backlog is turned away rather than left to queue
+		final BlockingQueue<Runnable> work = (capacity > 0)
+			? new ArrayBlockingQueue<Runnable>(capacity)
+			: new SynchronousQueue<Runnable>();
+		return new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, work);
+	}
+
+	/**
+	 * 'config', with MyFaces' error handling turned off in its context
+	 */
+	private static ServletConfig withoutErrorPage(final ServletConfig config) {
+
+		final ServletContext ctx = config.getServletContext();
+		final ServletContext wrapped = (ServletContext)Proxy.newProxyInstance(
+				ServletContext.class.getClassLoader(),
+				new Class<?>[] { ServletContext.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if( "getInitParameter".equals(method.getName()) && MYFACES_ERROR_HANDLING.equals(args[0]) )
+							return "false";
+						try {
+							return method.invoke(ctx, args);
+						} catch( InvocationTargetException e ) {
+							throw e.getCause();
+						}
+					}
+				});
+
+		return new ServletConfig() {
+			public String getServletName() {
+				return config.getServletName();
+			}
+
+			public ServletContext getServletContext() {
+				return wrapped;
+			}
+
+			public String getInitParameter(String name) {
+				return config.getInitParameter(name);
+			}
+
+			public Enumeration<String> getInitParameterNames() {
+				return config.getInitParameterNames();
+			}
+		};
+	}
+
+	/**
+	 * The STM retry 't' is or wraps, or null
+	 */
+	private static Error retry(Throwable t) {
+		for( ; null != t; t = t.getCause() ) {
+			if( RETRY.equals(t.getClass().getName()) )
+				return (Error)t;
+		}
+		return null;
+	}
+
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		this.facesServlet = new FacesServlet();
-		this.facesServlet.init(config);
+		this.facesServlet.init(withoutErrorPage(config));
+
+		// To render once a pending action has been delivered
+		this.facesContextFactory = (FacesContextFactory)FactoryFinder.getFactory(FactoryFinder.FACES_CONTEXT_FACTORY);
+		final LifecycleFactory lifecycles = (LifecycleFactory)FactoryFinder.getFactory(FactoryFinder.LIFECYCLE_FACTORY);
+		final String lifecycleId = config.getServletContext().getInitParameter(FacesServlet.LIFECYCLE_ID_ATTR);
+		this.lifecycle = lifecycles.getLifecycle((null == lifecycleId) ? LifecycleFactory.DEFAULT_LIFECYCLE : lifecycleId);
+		this.actionTimeout = FacileActionListener.timeout(
+				config.getServletContext().getInitParameter(FacileActionListener.ACTION_TIMEOUT));
+
+		if( Boolean.valueOf(config.getInitParameter(ASYNC)) ) {
+			this.executor = createExecutor(config.getInitParameter(ASYNC_THREADS),
+					config.getInitParameter(ASYNC_QUEUE));
+
+			final String timeout = config.getInitParameter(ASYNC_TIMEOUT);
+			this.asyncTimeout = (null == timeout) ? 0 : Long.parseLong(timeout.trim());
+		}
+
+		this.admission = new AdmissionControl(config);
+		this.retryAfter = config.getInitParameter(RETRY_AFTER);
+		if( null == this.retryAfter )
+			this.retryAfter = "1";
+
+		this.conditionalGet = Boolean.valueOf(config.getInitParameter(CONDITIONAL_GET));
+		if( this.conditionalGet )
+			VersionStamps.install();
+
+		final String store = config.getInitParameter(SESSION_STORE);
+		if( null != store && store.trim().length() > 0 )
+			this.sessionStore = new FileSessionStore(new File(store.trim()));
+
+		final String logSample = config.getInitParameter(STM_LOG_SAMPLE);
+		if( null != logSample && logSample.trim().length() > 0 )
+			Contention.setLogSample(Integer.parseInt(logSample.trim()));
 	}
 
 	@Override
 	public void destroy() {
+		if( null != executor ) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch( InterruptedException e ) {
+				executor.shutdownNow();
+			}
+		}
 		facesServlet.destroy();
+
+		log.info(Contention.summary(10));
 	}
 
 	@Override
@@ -42,23 +247,267 @@ public class FacileServlet extends HttpServlet {
 		return facesServlet.getServletInfo();
 	}
 
-	@Override
-	public void service(final ServletRequest request, final ServletResponse response)
+	private void serviceInTransaction(final ServletRequest request, final ServletResponse response)
 			throws IOException, ServletException {
-		
-		// Wrap the service call 
-		final IFn service = new AFn() {
-			public Object invoke() throws IOException, ServletException {
+
+		// Actions left pending are resumed by us, outside the transaction
+		request.setAttribute(FacileActionListener.RESUMES, Boolean.TRUE);
+
+		inTransaction(request, response, new AFn() {
+			public Object invoke() throws Exception {
 				facesServlet.service(request, response);
 				return null;
 			}
+		}, false);
+
+		final FacileActionListener.Pending pending =
+			(FacileActionListener.Pending)request.getAttribute(FacileActionListener.PENDING);
+		if( null != pending ) {
+			request.removeAttribute(FacileActionListener.PENDING);
+			resume(request, response, pending);
+		}
+	}
+
+	/**
+	 * Wait for the result of the action left 'pending' by the request, then
+	 * navigate on it and render in a transaction of its own.
+	 */
+	private void resume(final ServletRequest request, final ServletResponse response,
+			final FacileActionListener.Pending pending) throws IOException, ServletException {
+
+		final Object value;
+		try {
+			value = pending.await(this.actionTimeout);
+		} catch( TimeoutException e ) {
+			log.warning(pending.getFromAction() + " took longer than " + this.actionTimeout + "ms");
+			((HttpServletResponse)response).setHeader("Retry-After", this.retryAfter);
+			sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		} catch( Exception e ) {
+			throw new ServletException("Caught exception while waiting on " + pending.getFromAction(), e);
+		}
+
+		final ServletContext servletContext = facesServlet.getServletConfig().getServletContext();
+		inTransaction(request, response, new AFn() {
+			public Object invoke() throws Exception {
+				final FacesContext ctx = facesContextFactory.getFacesContext(servletContext, request, response, lifecycle);
+				try {
+					pending.navigate(ctx, value);
+					lifecycle.render(ctx);
+				} finally {
+					ctx.release();
+				}
+				return null;
+			}
+		}, true);
+	}
+
+	/**
+	 * Run 'body' for 'request' in a transaction, retrying it on contention;
+	 * 'resumed' if it resumes the request's pending action, so that the
+	 * request isn't counted twice.
+	 */
+	private void inTransaction(final ServletRequest request, final ServletResponse response, final IFn body,
+			boolean resumed)
+			throws IOException, ServletException {
+
+		// Wrap the service call
+		final IFn service = new AFn() {
+			private int attempts;
+
+			public Object invoke() throws Exception {
+				// A retry starts over on what the last attempt wrote
+				if( attempts++ > 0 && !response.isCommitted() )
+					response.resetBuffer();
+
+				Contention.attempt();
+				try {
+					body.invoke();
+				} catch( Exception e ) {
+					// Rethrown as is, for the transaction to retry
+					final Error retry = retry(e);
+					if( null != retry )
+						throw retry;
+					throw e;
+				} finally {
+					// An aborted lifecycle leaves its bindings pushed
+					FacilePhaseListener.unwind(request);
+				}
+				return null;
+			}
 		};
-		
-		// Run the service method in a transaction
+
+		// Components defined by defcomponent live in memory; JSF looks them
+		// up through the context class loader
+		final Thread thread = Thread.currentThread();
+		final ClassLoader contextLoader = thread.getContextClassLoader();
+		thread.setContextClassLoader(ComponentClasses.loader(contextLoader));
+
+		final HttpSession session = ((HttpServletRequest)request).getSession(false);
+		if( null != sessionStore && null != session )
+			sessionStore.restore(session);
+
+		// Run the service method in a transaction, counting its attempts
+		final boolean counting = Contention.begin(viewId(request), resumed);
 		try {
 			LockingTransaction.runInTransaction(service);
 		} catch(Exception e) {
 			throw new ServletException(e);
+		} finally {
+			if( counting )
+				Contention.end();
+			thread.setContextClassLoader(contextLoader);
+		}
+
+		// Write out what the request changed
+		if( null != sessionStore ) {
+			final HttpSession after = ((HttpServletRequest)request).getSession(false);
+			if( null != after ) {
+				try {
+					sessionStore.save(after);
+				} catch( IllegalStateException e ) {
+					// Invalidated during the request
+				}
+			}
+		}
+	}
+
+	private void serviceAsync(final ServletRequest request, final ServletResponse response,
+			final AdmissionControl.Ticket ticket) {
+
+		// The container resets the request's paths once service returns
+		final HttpServletRequest req = (HttpServletRequest)request;
+		final String contextPath = req.getContextPath();
+		final String servletPath = req.getServletPath();
+		final String pathInfo = req.getPathInfo();
+		final HttpServletRequest frozen = new HttpServletRequestWrapper(req) {
+			@Override
+			public String getContextPath() {
+				return contextPath;
+			}
+
+			@Override
+			public String getServletPath() {
+				return servletPath;
+			}
+
+			@Override
+			public String getPathInfo() {
+				return pathInfo;
+			}
+		};
+
+		final AsyncContext async = request.startAsync(frozen, response);
+		async.setTimeout(this.asyncTimeout);
+
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					serviceInTransaction(async.getRequest(), async.getResponse());
+				} catch( Exception e ) {
+					log.log(Level.SEVERE, "Caught exception while servicing request", e);
+					sendError(async.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				} finally {
+					ticket.release();
+					async.complete();
+				}
+			}
+		};
+
+		try {
+			executor.execute(task);
+		} catch( RejectedExecutionException e ) {
+			ticket.release();
+			((HttpServletResponse)response).setHeader("Retry-After", this.retryAfter);
+			sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			async.complete();
+		}
+	}
+
+	private static void sendError(ServletResponse response, int status) {
+		try {
+			if( !response.isCommitted() )
+				((HttpServletResponse)response).sendError(status);
+		} catch( IOException e ) {
+			log.log(Level.FINE, "Couldn't send error " + status, e);
+		}
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag) {
+		for( String candidate : ifNoneMatch.split(",") ) {
+			candidate = candidate.trim();
+			if( candidate.equals(etag) || candidate.equals("*") )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Answers a conditional GET with 304 if the view's source and bound values
+	 * haven't changed since the client's copy, before any of the lifecycle
+	 * runs. Otherwise tags the response and returns false.
+	 */
+	private boolean notModified(HttpServletRequest req, HttpServletResponse resp, String viewId) {
+
+		if( !this.conditionalGet || !"GET".equals(req.getMethod()) )
+			return false;
+
+		// The view is about to be reloaded, so we can't vouch for it
+		final String filePath = FacileLoader.getPath(getServletContext(), viewId);
+		if( null == filePath || FacileLoader.isDirty(filePath) )
+			return false;
+
+		final String etag = VersionStamps.validator(viewId, FacileLoader.getStamp(filePath),
+				req.getHeader("Accept-Language"));
+		if( null == etag )
+			return false;
+
+		// Shared caches could hand one client's page to another
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Cache-Control", "private, no-cache");
+		resp.setHeader("Vary", "Accept-Language");
+
+		final String ifNoneMatch = req.getHeader("If-None-Match");
+		if( null != ifNoneMatch && matches(ifNoneMatch, etag) ) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void service(final ServletRequest request, final ServletResponse response)
+			throws IOException, ServletException {
+
+		final String viewId = viewId(request);
+
+		if( notModified((HttpServletRequest)request, (HttpServletResponse)response, viewId) )
+			return;
+
+		// Admission control
+		final AdmissionControl.Ticket ticket;
+		try {
+			ticket = admission.admit(viewId);
+		} catch( InterruptedException e ) {
+			throw new ServletException(e);
+		}
+
+		if( null == ticket ) {
+			final HttpServletResponse resp = (HttpServletResponse)response;
+			resp.setHeader("Retry-After", this.retryAfter);
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		if( null != executor && request.isAsyncSupported() ) {
+			serviceAsync(request, response, ticket);
+			return;
+		}
+
+		try {
+			serviceInTransaction(request, response);
+		} finally {
+			ticket.release();
 		}
 	}
 
@@ -66,5 +515,5 @@ public class FacileServlet extends HttpServlet {
 	public String toString() {
 		return "FacileServlet(" + facesServlet.toString() + ")";
 	}
-	
+
 }
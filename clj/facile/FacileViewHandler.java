@@ -3,7 +3,9 @@ package clj.facile;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -24,6 +26,7 @@ import javax.faces.render.RenderKit;
 import javax.faces.render.RenderKitFactory;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
 
 import clojure.lang.RT;
 import clojure.lang.Ref;
@@ -43,6 +46,11 @@ public class FacileViewHandler extends ViewHandler {
 	// ///////////////////////////////////////////////////////////////////////
 	
 	static final String STATE_VAR = "clj.facile.viewState";
+	static final String ENCODING = "UTF-8";
+	static final String XML_CONTENT_TYPE = "text/xml;charset=" + ENCODING;
+	// Request attribute set once the view state has been written out
+	static final String STATE_WRITTEN = "clj.facile.stateWritten";
+	static final String STYLESHEET_PATH = "clj.facile.css.path";
 	static final Map<String,Ref> viewLocalsMap = new HashMap<String,Ref>(); 
 		
 	private ViewHandler parentHandler;
@@ -110,6 +118,7 @@ public class FacileViewHandler extends ViewHandler {
 		final String qualifiedSymbol = symbolFromViewId(ctx, requestViewId);
 
 		log.entering(FacileViewHandler.class.getName(), "createView(ctx=" + ctx + ", requestViewid=" + requestViewId + ")");
+		boolean pushed = false;
 		try {
 
 			final ExternalContext extCtx = ctx.getExternalContext();
@@ -128,20 +137,12 @@ public class FacileViewHandler extends ViewHandler {
 			log.finest("viewTemplate=" + viewTemplate);
 			
 			// Create the top-level view root
-			final UIViewRoot theView = new UIViewRoot();
+			final UIViewRoot theView = new FacileViewRoot();
 			theView.setViewId(requestViewId);
 			
-			// Establish bindings
-			clojure.lang.Var.pushThreadBindings(
-					clojure.lang.RT.map(
-							viewId, qualifiedSymbol,
-							viewRoot, theView
-							));
-			
-			// Build the view
-			buildView.invoke(viewTemplate.get(), theView);
-
-			// Prepare the view for rendering
+			// Prepare the view for rendering. Building it asks for client
+			// ids, which take the context's render kit, so a view made
+			// for a request without one is the context's from the start
 			final UIViewRoot old = ctx.getViewRoot();
 			if( null != old ) {
 				theView.setLocale(old.getLocale());
@@ -151,8 +152,20 @@ public class FacileViewHandler extends ViewHandler {
 
 				theView.setLocale(vh.calculateLocale(ctx));
 				theView.setRenderKitId(vh.calculateRenderKitId(ctx));
+				ctx.setViewRoot(theView);
 			}
 
+			// Establish bindings
+			clojure.lang.Var.pushThreadBindings(
+					clojure.lang.RT.map(
+							viewId, qualifiedSymbol,
+							viewRoot, theView
+							));
+			pushed = true;
+			
+			// Build the view
+			buildView.invoke(viewTemplate.get(), theView);
+
 			return theView;
 			
 		} catch( Exception e ) {
@@ -161,7 +174,9 @@ public class FacileViewHandler extends ViewHandler {
 			throw new RuntimeException(e);
 			
 		} finally {
-			Var.popThreadBindings();
+			// Loading the view may fail before the bindings are pushed
+			if( pushed )
+				Var.popThreadBindings();
 			log.exiting(FacileViewHandler.class.getName(), "createView");
 		}
 	}
@@ -176,19 +191,55 @@ public class FacileViewHandler extends ViewHandler {
 		return parentHandler.getResourceURL(ctx, requestViewId);
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public void renderView(FacesContext ctx, UIViewRoot view)
 			throws IOException, FacesException {
 		
 		log.entering(FacileViewHandler.class.getName(), "renderView(ctx=" + ctx + ", view=" + view + ")");
 
-		setupResponse(ctx);
+		// Partial requests only get the requested components back
+		if( PartialRequest.isPartial(ctx) ) {
+			renderPartial(ctx, view);
+			
+			log.exiting(FacileViewHandler.class.getName(), "renderView");
+			return;
+		}
+		
+		setupResponse(ctx, null);
 		
+		// Build what was hidden when the view was built but is shown now
+		LazySubtree.materialize(ctx, view);
+
 		StateManager sm = ctx.getApplication().getStateManager();
 		SerializedView state = sm.saveSerializedView(ctx);
 		ctx.getExternalContext().getRequestMap().put(STATE_VAR, state);
 
 		final ResponseWriter out = ctx.getResponseWriter();
+
+		// In render-diff mode the body is rendered off to the side first, so
+		// that a client posting back gets only what changed
+		String body = null;
+		String token = null;
+		if( RenderDiff.isEnabled(ctx) ) {
+			final RenderDiff diff = new RenderDiff(ctx, out);
+			ctx.setResponseWriter(diff.getWriter());
+			try {
+				renderResponse(ctx, view, diff);
+			} finally {
+				ctx.setResponseWriter(out);
+				body = diff.finish();
+			}
+			token = diff.save(symbolFromViewId(ctx, view.getViewId()));
+
+			if( null != diff.getUpdates() ) {
+				renderDiff(ctx, diff, token);
+
+				log.exiting(FacileViewHandler.class.getName(), "renderView");
+				return;
+			}
+		}
+
 		out.startDocument();
 
 		// Write the HTML header
@@ -201,20 +252,57 @@ public class FacileViewHandler extends ViewHandler {
 				out.startElement("title", null);
 					out.writeText("Clojure view title", null);
 				out.endElement("title");
+				writeStylesheetLink(ctx, view);
+				if( null != token ) {
+					out.startElement("meta", null);
+						out.writeAttribute("name", RenderDiff.TOKEN_PARAM, null);
+						out.writeAttribute("content", token, null);
+					out.endElement("meta");
+				}
 			out.endElement("head");
 			
 			out.startElement("body", null);
 				// Render the view
-				renderResponse(ctx,view);
+				if( null != body )
+					out.write(body);
+				else
+					renderResponse(ctx,view);
 			out.endElement("body");
 
 		out.endElement("html");
 		out.endDocument();
+		Compression.finish(ctx);
+
+		// Conditional GETs are only answered for pages without either
+		VersionStamps.rendered(symbolFromViewId(ctx, view.getViewId()),
+				null != token || ctx.getExternalContext().getRequestMap().containsKey(STATE_WRITTEN));
 
 		log.exiting(FacileViewHandler.class.getName(), "renderView");
 		return;
 	}
 
+	/**
+	 * Link to the stylesheet bundle of the view's namespace, if it has one.
+	 */
+	private void writeStylesheetLink(FacesContext ctx, UIViewRoot view) throws IOException {
+		
+		final String ns = FacileLoader.namespace(symbolFromViewId(ctx, view.getViewId()));
+		final Stylesheets.Bundle bundle = Stylesheets.bundle(ns);
+		if( null == bundle )
+			return;
+		
+		final ExternalContext extCtx = ctx.getExternalContext();
+		final String path = extCtx.getInitParameter(STYLESHEET_PATH);
+		
+		final ResponseWriter out = ctx.getResponseWriter();
+		out.startElement("link", null);
+			out.writeAttribute("rel", "stylesheet", null);
+			out.writeAttribute("type", "text/css", null);
+			out.writeAttribute("href", extCtx.getRequestContextPath() 
+					+ ((null != path) ? path : "/css") + "/" + bundle.fileName(), null);
+		out.endElement("link");
+	}
+
 	@Override
 	public UIViewRoot restoreView(FacesContext ctx, String requestViewId) {
 		
@@ -237,6 +325,7 @@ public class FacileViewHandler extends ViewHandler {
 		return restoredView;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public void writeState(FacesContext ctx) throws IOException {
 
@@ -244,50 +333,246 @@ public class FacileViewHandler extends ViewHandler {
 
 		SerializedView state = (SerializedView)ctx.getExternalContext().getRequestMap().get(STATE_VAR);
 		if( null != state ) {
+			// The state changes every time; keep it out of render-diff's hashes
+			final RenderDiff diff = RenderDiff.current(ctx);
+			if( null != diff )
+				diff.excludeBegin();
+
 			StateManager sm = ctx.getApplication().getStateManager();
 			sm.writeState(ctx, state);
+			ctx.getExternalContext().getRequestMap().put(STATE_WRITTEN, Boolean.TRUE);
+
+			if( null != diff )
+				diff.excludeEnd();
 		}
 		
 		log.exiting(FacileViewHandler.class.getName(), "writeState");
 	}
 
+	// Partial rendering /////////////////////////////////////////////////////
+	
+	private void writeCData(ResponseWriter out, String text) throws IOException {
+		out.write("<![CDATA[");
+		out.write(text.replace("]]>", "]]]]><![CDATA[>"));
+		out.write("]]>");
+	}
+	
+	/**
+	 * Renders a partial response: an update element for each of the 
+	 * requested components followed by the new view state, e.g.
+	 * 
+	 *   <partial-response>
+	 *     <update id="form:name"><![CDATA[...]]></update>
+	 *     <state><![CDATA[...]]></state>
+	 *   </partial-response>
+	 * 
+	 * In render-diff mode it ends with the token of the page as patched, if
+	 * the client sent one. The facile.js client script patches these into
+	 * the page.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void renderPartial(FacesContext ctx, UIViewRoot view) throws IOException {
+		
+		log.entering(FacileViewHandler.class.getName(), "renderPartial(ctx=" + ctx + ", view=" + view + ")");
+		
+		setupResponse(ctx, XML_CONTENT_TYPE);
+		
+		LazySubtree.materialize(ctx, view);
+
+		StateManager sm = ctx.getApplication().getStateManager();
+		SerializedView state = sm.saveSerializedView(ctx);
+		ctx.getExternalContext().getRequestMap().put(STATE_VAR, state);
+		
+		final ResponseWriter out = ctx.getResponseWriter();
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<partial-response>");
+
+		final Map<UIComponent,RenderDiff> diffs = RenderDiff.isEnabled(ctx)
+			? new LinkedHashMap<UIComponent,RenderDiff>()
+			: null;
+		for( String id : PartialRequest.renderIds(ctx) ) {
+			
+			final UIComponent component = PartialRequest.find(view, id);
+			if( null == component ) {
+				log.finest("No component " + id + ", skipping");
+				continue;
+			}
+			
+			// Render the component off to the side so we can escape it; in
+			// render-diff mode, hashing it as we go
+			final String markup;
+			if( null != diffs ) {
+				final RenderDiff diff = new RenderDiff(ctx, out);
+				ctx.setResponseWriter(diff.getWriter());
+				try {
+					renderResponse(ctx, component, diff);
+				} finally {
+					ctx.setResponseWriter(out);
+				}
+				markup = diff.finish();
+				diffs.put(component, diff);
+			} else {
+				final StringWriter buffer = new StringWriter();
+				ctx.setResponseWriter(out.cloneWithWriter(buffer));
+				try {
+					renderResponse(ctx, component);
+					ctx.getResponseWriter().flush();
+				} finally {
+					ctx.setResponseWriter(out);
+				}
+				markup = buffer.toString();
+			}
+
+			out.write("<update id=\"" + id + "\">");
+			writeCData(out, markup);
+			out.write("</update>");
+		}
+		
+		writeStateElement(ctx, out);
+
+		// The page the client holds now, for its next render-diff postback
+		if( null != diffs ) {
+			final String token = RenderDiff.patch(ctx, symbolFromViewId(ctx, view.getViewId()), diffs);
+			if( null != token )
+				out.write("<token>" + token + "</token>");
+		}
+		
+		out.write("</partial-response>");
+		// Only ending the document flushes what the writer holds
+		out.endDocument();
+		Compression.finish(ctx);
+		
+		log.exiting(FacileViewHandler.class.getName(), "renderPartial");
+	}
+
+	/**
+	 * Renders the changes render-diff found as a partial response, along
+	 * with the new view state and the token of the new rendering:
+	 * 
+	 *   <partial-response>
+	 *     <update id="form:name"><![CDATA[...]]></update>
+	 *     <state><![CDATA[...]]></state>
+	 *     <token>...</token>
+	 *   </partial-response>
+	 */
+	protected void renderDiff(FacesContext ctx, RenderDiff diff, String token) throws IOException {
+
+		log.entering(FacileViewHandler.class.getName(), "renderDiff(ctx=" + ctx + ")");
+
+		// The writer was set up as UTF-8 before we knew we'd answer in XML
+		((ServletResponse)ctx.getExternalContext().getResponse()).setContentType(XML_CONTENT_TYPE);
+
+		final ResponseWriter out = ctx.getResponseWriter();
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<partial-response>");
+
+		for( RenderDiff.Node node : diff.getUpdates() ) {
+			out.write("<update id=\"" + node.getClientId() + "\">");
+			writeCData(out, diff.markup(node));
+			out.write("</update>");
+		}
+
+		writeStateElement(ctx, out);
+		out.write("<token>" + token + "</token>");
+
+		out.write("</partial-response>");
+		// Only ending the document flushes what the writer holds
+		out.endDocument();
+		Compression.finish(ctx);
+
+		log.exiting(FacileViewHandler.class.getName(), "renderDiff");
+	}
+
+	/**
+	 * The new view state, for a partial response
+	 */
+	private void writeStateElement(FacesContext ctx, ResponseWriter out) throws IOException {
+
+		final StringWriter buffer = new StringWriter();
+		ctx.setResponseWriter(out.cloneWithWriter(buffer));
+		try {
+			writeState(ctx);
+			ctx.getResponseWriter().flush();
+		} finally {
+			ctx.setResponseWriter(out);
+		}
+		out.write("<state>");
+		writeCData(out, buffer.toString());
+		out.write("</state>");
+	}
+	
 	// Private ///////////////////////////////////////////////////////////////
 	
-	private void setupResponse(FacesContext ctx) throws IOException {
+	/**
+	 * Sets up the response writer, for 'contentType' or, if it is null, for
+	 * what the render kit writes. Either way the response is in UTF-8, as
+	 * partial responses declare, since a render-diff postback only finds
+	 * out it is getting one once the page has been rendered.
+	 */
+	@SuppressWarnings("unchecked")
+	private void setupResponse(FacesContext ctx, String contentType) throws IOException {
 		
 		log.entering(FacileViewHandler.class.getName(), "setupResponse");
 
 		ServletResponse response = (ServletResponse)ctx.getExternalContext().getResponse();
-		OutputStream os = response.getOutputStream();
+		// The writer encodes as the response declares, so declare first
+		if( null != contentType )
+			response.setContentType(contentType);
+		else
+			response.setCharacterEncoding(ENCODING);
+		OutputStream os = Compression.wrap(ctx, (HttpServletResponse)response, response.getOutputStream());
 		Map<String,String> headers = ctx.getExternalContext().getRequestHeaderMap();
 		String accept = headers.get("Accept");
 		
 		RenderKitFactory renderFactory = (RenderKitFactory)FactoryFinder.getFactory(FactoryFinder.RENDER_KIT_FACTORY);
 		RenderKit renderKit = renderFactory.getRenderKit(ctx, ctx.getViewRoot().getRenderKitId());
 		ResponseWriter writer = renderKit.createResponseWriter(
-				new OutputStreamWriter(os), 
+				new OutputStreamWriter(os, response.getCharacterEncoding()), 
 				accept, 
 				response.getCharacterEncoding());
 		ctx.setResponseWriter(writer);
-		response.setContentType(writer.getContentType());
+		Compression.setWriter(ctx, writer);
+		if( null == contentType )
+			response.setContentType(writer.getContentType());
 		
 		log.exiting(FacileViewHandler.class.getName(), "setupResponse");
 	}
 	
 	protected void renderResponse(FacesContext ctx, UIComponent component) throws IOException {
+		renderResponse(ctx, component, null);
+	}
+
+	/**
+	 * Renders 'component', noting where each component's markup starts and
+	 * ends with 'diff' if there is one.
+	 */
+	@SuppressWarnings("unchecked")
+	private void renderResponse(FacesContext ctx, UIComponent component, RenderDiff diff) throws IOException {
 		
 		log.entering(FacileViewHandler.class.getName(), "renderResponse", new Object[] { ctx, component } );
 
+		// Neither a hidden component nor anything in it is rendered
+		if( !component.isRendered() ) {
+			log.exiting(FacileViewHandler.class.getName(), "renderResponse");
+			return;
+		}
+
+		if( null != diff )
+			diff.begin(component);
+
 		component.encodeBegin(ctx);
 		if( component.getRendersChildren() ) {
 			component.encodeChildren(ctx);
 		} else {
 			for( UIComponent child : (List<UIComponent>)component.getChildren() ) {
-				renderResponse(ctx, child);
+				renderResponse(ctx, child, diff);
 			}
 			
 		}
 		component.encodeEnd(ctx);
+
+		if( null != diff )
+			diff.end();
 		
 		log.exiting(FacileViewHandler.class.getName(), "renderResponse");	
 	}
@@ -0,0 +1,99 @@
+package clj.facile;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+import javax.faces.event.PhaseId;
+
+/**
+ * View root used for every Facile view. On a partial request only the
+ * components named by the client are run through decode, validation and
+ * model update; a regular request behaves exactly like UIViewRoot.
+ */
+public class FacileViewRoot extends UIViewRoot {
+
+	static final Logger log = Logger.getLogger(FacileViewRoot.class.getName());
+
+	private boolean processPartial(FacesContext ctx, PhaseId phase) {
+
+		final List<String> ids = PartialRequest.executeIds(ctx);
+		if( null == ids )
+			return false;
+
+		log.entering(FacileViewRoot.class.getName(), "processPartial", new Object[] { phase, ids });
+
+		for( String id : ids ) {
+
+			final UIComponent component = PartialRequest.find(this, id);
+			if( null == component ) {
+				log.finest("No component " + id + ", skipping");
+				continue;
+			}
+
+			if( PhaseId.APPLY_REQUEST_VALUES.equals(phase) )
+				component.processDecodes(ctx);
+			else if( PhaseId.PROCESS_VALIDATIONS.equals(phase) )
+				component.processValidators(ctx);
+			else if( PhaseId.UPDATE_MODEL_VALUES.equals(phase) )
+				component.processUpdates(ctx);
+		}
+
+		log.exiting(FacileViewRoot.class.getName(), "processPartial");
+		return true;
+	}
+
+	// UIViewRoot broadcasts the queued events after walking its children,
+	// but the broadcast itself is private. We hide the root for the duration
+	// of the walk so that only the broadcast happens.
+	private void hideChildren(boolean hide) {
+		setRendered(!hide);
+	}
+
+	@Override
+	public void processDecodes(FacesContext ctx) {
+		if( !processPartial(ctx, PhaseId.APPLY_REQUEST_VALUES) ) {
+			super.processDecodes(ctx);
+			return;
+		}
+
+		hideChildren(true);
+		try {
+			super.processDecodes(ctx);
+		} finally {
+			hideChildren(false);
+		}
+	}
+
+	@Override
+	public void processValidators(FacesContext ctx) {
+		if( !processPartial(ctx, PhaseId.PROCESS_VALIDATIONS) ) {
+			super.processValidators(ctx);
+			return;
+		}
+
+		hideChildren(true);
+		try {
+			super.processValidators(ctx);
+		} finally {
+			hideChildren(false);
+		}
+	}
+
+	@Override
+	public void processUpdates(FacesContext ctx) {
+		if( !processPartial(ctx, PhaseId.UPDATE_MODEL_VALUES) ) {
+			super.processUpdates(ctx);
+			return;
+		}
+
+		hideChildren(true);
+		try {
+			super.processUpdates(ctx);
+		} finally {
+			hideChildren(false);
+		}
+	}
+}
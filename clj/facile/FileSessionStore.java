@@ -0,0 +1,213 @@
+package clj.facile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+/**
+ * A session store that keeps each session's attributes in files, one per
+ * attribute, under '<directory>/<session id>/'. It writes only what changed:
+ * SessionValues when they are dirty, other Serializable attributes when
+ * they have been set to a different object since the last save. Changes
+ * made inside a mutable attribute without setting it again go unnoticed,
+ * as they would with a replicating container.
+ *
+ * Meant for testing how much a session costs to replicate, and for carrying
+ * sessions across restarts in development; see FacileServlet's
+ * clj.facile.session.store init parameter.
+ */
+public class FileSessionStore {
+
+	static final Logger log = Logger.getLogger(FileSessionStore.class.getName());
+
+	static final String TRACKER = "clj.facile.session-store";
+	static final String SUFFIX = ".ser";
+
+	/**
+	 * What has been written for a session; deletes the session's files when
+	 * the session ends.
+	 */
+	static class Tracker implements HttpSessionBindingListener, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final transient File dir;
+		final transient Map<String,Object> written = new HashMap<String,Object>();
+
+		Tracker(File dir) {
+			this.dir = dir;
+		}
+
+		public void valueBound(HttpSessionBindingEvent ev) {
+		}
+
+		public void valueUnbound(HttpSessionBindingEvent ev) {
+			if( null == dir )
+				return;
+
+			final File[] files = dir.listFiles();
+			if( null != files )
+				for( File f : files )
+					f.delete();
+			dir.delete();
+		}
+	}
+
+	private final File directory;
+
+	public FileSessionStore(File directory) {
+		this.directory = directory;
+		this.directory.mkdirs();
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch( UnsupportedEncodingException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch( UnsupportedEncodingException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load what was saved for 'session', unless that has already been done;
+	 * attributes the session already has are left alone.
+	 */
+	public Tracker restore(HttpSession session) {
+
+		final Tracker existing = (Tracker)session.getAttribute(TRACKER);
+		if( null != existing && null != existing.dir )
+			return existing;
+
+		final Tracker tracker = new Tracker(new File(directory, encode(session.getId())));
+
+		final File[] files = tracker.dir.listFiles();
+		if( null != files ) {
+			for( File f : files ) {
+				if( !f.getName().endsWith(SUFFIX) )
+					continue;
+
+				final String name = decode(f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+				if( null != session.getAttribute(name) )
+					continue;
+
+				try {
+					final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+					try {
+						final Object value = in.readObject();
+						session.setAttribute(name, value);
+						tracker.written.put(name, value);
+					} finally {
+						in.close();
+					}
+				} catch( Exception e ) {
+					log.log(Level.WARNING, "Couldn't restore " + name + " from " + f, e);
+				}
+			}
+		}
+
+		session.setAttribute(TRACKER, tracker);
+		return tracker;
+	}
+
+	/**
+	 * Write the attributes of 'session' that changed since the last save, and
+	 * delete those that were removed; returns the number of bytes written.
+	 */
+	public long save(HttpSession session) {
+
+		final Tracker tracker = restore(session);
+		tracker.dir.mkdirs();
+
+		long bytes = 0;
+		final ArrayList<String> present = new ArrayList<String>();
+
+		for( Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements(); ) {
+			final String name = (String)names.nextElement();
+			if( TRACKER.equals(name) )
+				continue;
+			present.add(name);
+
+			final Object value = session.getAttribute(name);
+			final boolean replaced = (tracker.written.get(name) != value);
+			if( value instanceof SessionValue ) {
+				// Clear first, so that a change made while we write marks it again
+				if( !((SessionValue)value).clearDirty() && !replaced )
+					continue;
+			} else if( !(value instanceof Serializable) || !replaced )
+				continue;
+
+			try {
+				bytes += write(new File(tracker.dir, encode(name) + SUFFIX), value);
+				tracker.written.put(name, value);
+			} catch( IOException e ) {
+				log.log(Level.WARNING, "Couldn't save session attribute " + name, e);
+			}
+		}
+
+		// Removed attributes
+		for( String name : new ArrayList<String>(tracker.written.keySet()) ) {
+			if( !present.contains(name) ) {
+				new File(tracker.dir, encode(name) + SUFFIX).delete();
+				tracker.written.remove(name);
+			}
+		}
+
+		if( bytes > 0 ) {
+			Metrics.add("session.store.bytes", bytes);
+			Metrics.increment("session.store.saves");
+		}
+		return bytes;
+	}
+
+	private static long write(File file, Object value) throws IOException {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+
+		// Write aside and rename, so a crash never leaves half an attribute
+		final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		final BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			bytes.writeTo(os);
+		} finally {
+			os.close();
+		}
+		if( !tmp.renameTo(file) ) {
+			file.delete();
+			if( !tmp.renameTo(file) )
+				throw new IOException("Couldn't rename " + tmp + " to " + file);
+		}
+
+		return bytes.size();
+	}
+}
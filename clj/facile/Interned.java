@@ -0,0 +1,379 @@
+package clj.facile;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.faces.component.StateHolder;
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.convert.Converter;
+import javax.faces.el.PropertyNotFoundException;
+import javax.faces.el.ValueBinding;
+import javax.faces.validator.Validator;
+
+import clojure.lang.IPersistentList;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.IPersistentVector;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/**
+ * Converters, validators and select-item lists configured only with
+ * constants are made once for each configuration and shared by every view
+ * and request that asks for it. Components get a reference to the shared
+ * object, whose saved state is only its id, and a restored view gets the
+ * same object back: a large configuration such as a list of select items
+ * stays out of the view state.
+ *
+ * A configuration is a vector whose first item names the fn that makes the
+ * object from the rest, e.g. [clj.facile.taglib.core/new-range-validator
+ * "javax.faces.LongRange" 1 10]. It is constant if it is made of strings,
+ * numbers, keywords, symbols, booleans, locales and time zones, or vectors,
+ * lists, maps and sets of them. Its id is a digest of it, the same in every
+ * JVM, so a view saved by another node, or before a restart, finds its
+ * objects once its namespace is loaded here. Configurations are never
+ * dropped, as saved views may still refer to them; past MAX_ENTRIES the
+ * objects are made afresh each time instead.
+ */
+public class Interned {
+
+	static final Logger log = Logger.getLogger(Interned.class.getName());
+
+	static final int MAX_ENTRIES = 4096;
+
+	static final Var require = RT.var("clojure.core", "require");
+
+	private static final ConcurrentHashMap<Object,String> ids = new ConcurrentHashMap<Object,String>();
+	private static final ConcurrentHashMap<String,Entry> objects = new ConcurrentHashMap<String,Entry>();
+	private static final AtomicBoolean full = new AtomicBoolean();
+
+	private static class Entry {
+		final String id;
+		final Object config;
+		final Object value;
+
+		Entry(String id, Object config, Object value) {
+			this.id = id;
+			this.config = config;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Whether 'o' can't change, so that objects made from it can be shared
+	 */
+	public static boolean isConstant(Object o) {
+
+		if( null == o || o instanceof String || o instanceof Number || o instanceof Boolean
+				|| o instanceof Character || o instanceof Keyword || o instanceof Symbol
+				|| o instanceof Locale || o instanceof TimeZone )
+			return true;
+
+		// Lazy seqs could be endless
+		if( !(o instanceof IPersistentVector || o instanceof IPersistentMap
+				|| o instanceof IPersistentSet || o instanceof IPersistentList) )
+			return false;
+
+		for( Object item : (Iterable<?>)o ) {
+			if( item instanceof Map.Entry ) {
+				final Map.Entry<?,?> e = (Map.Entry<?,?>)item;
+				if( !isConstant(e.getKey()) || !isConstant(e.getValue()) )
+					return false;
+			} else if( !isConstant(item) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Make the object 'config' describes with the fn its first item names,
+	 * loading the fn's namespace if need be.
+	 */
+	private static Object make(Object config) throws Exception {
+
+		final Symbol maker = (Symbol)RT.first(config);
+		final Var fn = RT.var(maker.getNamespace(), maker.getName());
+		if( !fn.isBound() )
+			require.invoke(Symbol.intern(maker.getNamespace()));
+
+		return fn.applyTo(RT.next(config));
+	}
+
+	/**
+	 * Write 'o', a constant, to 'out' the same way in any JVM: map and set
+	 * entries are sorted, and each item is marked with its type.
+	 */
+	private static void canonical(Object o, StringBuilder out) {
+
+		if( null == o ) {
+			out.append("nil");
+		} else if( o instanceof String ) {
+			out.append('"').append(((String)o).length()).append(':').append(o);
+		} else if( o instanceof TimeZone ) {
+			out.append("#tz ").append(((TimeZone)o).getID());
+		} else if( o instanceof IPersistentMap || o instanceof IPersistentSet ) {
+			final List<String> items = new ArrayList<String>();
+			for( Object item : (Iterable<?>)o ) {
+				final StringBuilder b = new StringBuilder();
+				if( item instanceof Map.Entry ) {
+					canonical(((Map.Entry<?,?>)item).getKey(), b);
+					b.append(' ');
+					canonical(((Map.Entry<?,?>)item).getValue(), b);
+				} else {
+					canonical(item, b);
+				}
+				items.add(b.toString());
+			}
+			Collections.sort(items);
+			out.append((o instanceof IPersistentMap) ? "{" : "#{");
+			for( String item : items )
+				out.append(item).append(' ');
+			out.append('}');
+		} else if( o instanceof IPersistentVector || o instanceof IPersistentList ) {
+			out.append((o instanceof IPersistentVector) ? "[" : "(");
+			for( Object item : (Iterable<?>)o ) {
+				canonical(item, out);
+				out.append(' ');
+			}
+			out.append((o instanceof IPersistentVector) ? "]" : ")");
+		} else {
+			// Numbers, keywords, symbols, booleans, characters and locales
+			out.append('#').append(o.getClass().getName()).append(' ').append(o);
+		}
+	}
+
+	private static String digest(Object config) throws Exception {
+		final StringBuilder out = new StringBuilder();
+		canonical(config, out);
+
+		final MessageDigest sha = MessageDigest.getInstance("SHA-1");
+		return new BigInteger(1, sha.digest(out.toString().getBytes("UTF-8"))).toString(36);
+	}
+
+	/**
+	 * The shared object for 'config', made the first time; its id is null
+	 * if it isn't shared.
+	 */
+	private static Entry intern(Object config) throws Exception {
+
+		if( !isConstant(config) )
+			return new Entry(null, null, make(config));
+
+		final String id = ids.get(config);
+		if( null != id )
+			return objects.get(id);
+
+		if( ids.size() >= MAX_ENTRIES ) {
+			if( full.compareAndSet(false, true) )
+				log.warning(MAX_ENTRIES + " configurations interned; making further ones afresh");
+			return new Entry(null, null, make(config));
+		}
+
+		final Object made = make(config);
+		if( null == made )
+			return new Entry(null, null, null);
+
+		// Publish the object before its id, so an id found always resolves
+		final Entry entry = new Entry(digest(config), config, made);
+		final Entry winner = objects.putIfAbsent(entry.id, entry);
+		if( null != winner && !winner.config.equals(config) ) {
+			log.warning("Configurations " + winner.config + " and " + config + " share a digest; not sharing the latter");
+			return new Entry(null, null, made);
+		}
+
+		ids.putIfAbsent(config, entry.id);
+		return (null == winner) ? entry : winner;
+	}
+
+	/**
+	 * The shared object 'id'. A view is only restored once its namespace is
+	 * loaded, which makes every object its template refers to; an id still
+	 * unknown was made from a different template, e.g. by another version.
+	 */
+	private static Object resolve(String id) {
+		final Entry entry = objects.get(id);
+		if( null == entry )
+			throw new IllegalStateException("Interned object " + id + " is unknown; the view was saved by a different version of its namespace");
+		return entry.value;
+	}
+
+	/**
+	 * The converter 'config' describes; shared if 'config' is constant.
+	 */
+	public static Converter converter(Object config) throws Exception {
+		final Entry e = intern(config);
+		return (null == e.id) ? (Converter)e.value : new ConverterRef(e, (Converter)e.value);
+	}
+
+	/**
+	 * The validator 'config' describes; shared if 'config' is constant.
+	 */
+	public static Validator validator(Object config) throws Exception {
+		final Entry e = intern(config);
+		return (null == e.id) ? (Validator)e.value : new ValidatorRef(e, (Validator)e.value);
+	}
+
+	/**
+	 * A value binding to what 'config' describes if 'config' is constant;
+	 * otherwise what it describes.
+	 */
+	public static Object value(Object config) throws Exception {
+		final Entry e = intern(config);
+		return (null == e.id) ? e.value : new ValueRef(e, e.value);
+	}
+
+	// References ////////////////////////////////////////////////////////////
+	// Saved as their id; restored through the public no-argument
+	// constructor as the JSF state saving contract has it.
+
+	public static class ConverterRef implements Converter, StateHolder {
+		private String id;
+		private transient Converter converter;
+
+		public ConverterRef() {
+		}
+
+		ConverterRef(Entry entry, Converter converter) {
+			this.id = entry.id;
+			this.converter = converter;
+		}
+
+		private Converter converter() {
+			if( null == converter )
+				converter = (Converter)resolve(id);
+			return converter;
+		}
+
+		public Object getAsObject(FacesContext ctx, UIComponent component, String value) {
+			return converter().getAsObject(ctx, component, value);
+		}
+
+		public String getAsString(FacesContext ctx, UIComponent component, Object value) {
+			return converter().getAsString(ctx, component, value);
+		}
+
+		public Object saveState(FacesContext ctx) {
+			return id;
+		}
+
+		public void restoreState(FacesContext ctx, Object state) {
+			id = (String)state;
+			converter = null;
+		}
+
+		public boolean isTransient() {
+			return false;
+		}
+
+		public void setTransient(boolean transientValue) {
+		}
+	}
+
+	public static class ValidatorRef implements Validator, StateHolder {
+		private String id;
+		private transient Validator validator;
+
+		public ValidatorRef() {
+		}
+
+		ValidatorRef(Entry entry, Validator validator) {
+			this.id = entry.id;
+			this.validator = validator;
+		}
+
+		private Validator validator() {
+			if( null == validator )
+				validator = (Validator)resolve(id);
+			return validator;
+		}
+
+		public void validate(FacesContext ctx, UIComponent component, Object value) {
+			validator().validate(ctx, component, value);
+		}
+
+		public Object saveState(FacesContext ctx) {
+			return id;
+		}
+
+		public void restoreState(FacesContext ctx, Object state) {
+			id = (String)state;
+			validator = null;
+		}
+
+		public boolean isTransient() {
+			return false;
+		}
+
+		public void setTransient(boolean transientValue) {
+		}
+	}
+
+	public static class ValueRef extends ValueBinding implements StateHolder {
+		private String id;
+		private transient Object value;
+
+		public ValueRef() {
+		}
+
+		ValueRef(Entry entry, Object value) {
+			this.id = entry.id;
+			this.value = value;
+		}
+
+		@Override
+		public Object getValue(FacesContext ctx) {
+			if( null == value )
+				value = resolve(id);
+			return value;
+		}
+
+		@Override
+		public void setValue(FacesContext ctx, Object value) {
+			throw new PropertyNotFoundException("Interned value " + id + " is read-only");
+		}
+
+		@Override
+		public boolean isReadOnly(FacesContext ctx) {
+			return true;
+		}
+
+		@Override
+		public Class<?> getType(FacesContext ctx) {
+			return getValue(ctx).getClass();
+		}
+
+		@Override
+		public String getExpressionString() {
+			return null;
+		}
+
+		public Object saveState(FacesContext ctx) {
+			return id;
+		}
+
+		public void restoreState(FacesContext ctx, Object state) {
+			id = (String)state;
+			value = null;
+		}
+
+		public boolean isTransient() {
+			return false;
+		}
+
+		public void setTransient(boolean transientValue) {
+		}
+	}
+}
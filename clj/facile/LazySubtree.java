@@ -0,0 +1,150 @@
+package clj.facile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.faces.FacesException;
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIComponentBase;
+import javax.faces.component.UIData;
+import javax.faces.context.FacesContext;
+
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+/**
+ * Stands in for a child or facet that was hidden when the view was built
+ * (its rendered attribute was false), so that the subtree is only built if
+ * it comes to be rendered. Before a view is saved and rendered, materialize()
+ * replaces the placeholders that are rendered by then with their subtrees.
+ *
+ * A placeholder has no children; it keeps its id, its rendered attribute and
+ * its position in the view template, from which the subtree is found again
+ * in the view's Var once the view has been restored, along with a hash of
+ * the subtree's shape to tell if the template has changed since.
+ */
+public class LazySubtree extends UIComponentBase {
+
+	public static final String COMPONENT_FAMILY = "clj.facile.LazySubtree";
+
+	// View root attribute noting that a view has placeholders
+	public static final String HAS_PLACEHOLDERS = "clj.facile.lazy-subtrees";
+
+	static final Var materializeSubtree = RT.var("clj.facile", "materialize-subtree");
+	static final Var templateSubtree = RT.var("clj.facile", "template-subtree");
+
+	private String viewId;
+	private String path;
+	private int version;
+	private transient Object tree;
+
+	public LazySubtree() {
+	}
+
+	public LazySubtree(String viewId, String path, int version, Object tree) {
+		this.viewId = viewId;
+		this.path = path;
+		this.version = version;
+		this.tree = tree;
+	}
+
+	@Override
+	public String getFamily() {
+		return COMPONENT_FAMILY;
+	}
+
+	@Override
+	public boolean getRendersChildren() {
+		return true;
+	}
+
+	public String getViewId() {
+		return viewId;
+	}
+
+	/**
+	 * Put 'widget' in this placeholder's place in its parent.
+	 */
+	@SuppressWarnings("unchecked")
+	public void replaceWith(UIComponent widget) {
+
+		final UIComponent parent = getParent();
+		final List<UIComponent> children = parent.getChildren();
+		final int i = children.indexOf(this);
+		if( i >= 0 ) {
+			children.set(i, widget);
+			return;
+		}
+
+		String facetName = null;
+		for( Map.Entry<String,UIComponent> e : ((Map<String,UIComponent>)parent.getFacets()).entrySet() ) {
+			if( e.getValue() == this )
+				facetName = e.getKey();
+		}
+		if( null != facetName )
+			parent.getFacets().put(facetName, widget);
+	}
+
+	private UIComponent build() throws Exception {
+
+		if( null == tree )
+			tree = templateSubtree.invoke(viewId, path, Integer.valueOf(version));
+		if( null == tree )
+			throw new IllegalStateException("The template of " + viewId + " has changed at " + path
+					+ " since the view was built");
+
+		return (UIComponent)materializeSubtree.invoke(this, tree);
+	}
+
+	/**
+	 * Build the placeholders in the view rooted at 'root' that are to be
+	 * rendered. Hidden components are passed over, as are data tables, whose
+	 * rendered attributes depend on the row and which so never hold
+	 * placeholders.
+	 */
+	public static void materialize(FacesContext ctx, UIComponent root) throws FacesException {
+
+		if( !root.getAttributes().containsKey(HAS_PLACEHOLDERS) )
+			return;
+
+		try {
+			materialize(root);
+		} catch( FacesException e ) {
+			throw e;
+		} catch( Exception e ) {
+			throw new FacesException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void materialize(UIComponent component) throws Exception {
+
+		if( !component.isRendered() || component instanceof UIData )
+			return;
+
+		if( component instanceof LazySubtree )
+			component = ((LazySubtree)component).build();
+
+		// Copies, as placeholders are replaced as we go
+		for( UIComponent facet : new ArrayList<UIComponent>(component.getFacets().values()) )
+			materialize(facet);
+		for( UIComponent child : new ArrayList<UIComponent>(component.getChildren()) )
+			materialize(child);
+	}
+
+	@Override
+	public Object saveState(FacesContext ctx) {
+		return new Object[] { super.saveState(ctx), viewId, path, Integer.valueOf(version) };
+	}
+
+	@Override
+	public void restoreState(FacesContext ctx, Object state) {
+		final Object[] values = (Object[])state;
+		super.restoreState(ctx, values[0]);
+		viewId = (String)values[1];
+		path = (String)values[2];
+		version = ((Integer)values[3]).intValue();
+		tree = null;
+	}
+}
@@ -0,0 +1,56 @@
+package clj.facile;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of named counters and gauges. Served as plain text
+ * by the MetricsServlet.
+ */
+public class Metrics {
+
+	public interface Gauge {
+		long value();
+	}
+
+	private static final ConcurrentHashMap<String,AtomicLong> counters = new ConcurrentHashMap<String,AtomicLong>();
+	private static final ConcurrentHashMap<String,Gauge> gauges = new ConcurrentHashMap<String,Gauge>();
+
+	public static AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if( null == counter ) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	public static long increment(String name) {
+		return counter(name).incrementAndGet();
+	}
+
+	public static long add(String name, long delta) {
+		return counter(name).addAndGet(delta);
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Current value of every counter and gauge, by name.
+	 */
+	public static SortedMap<String,Long> snapshot() {
+
+		final SortedMap<String,Long> snapshot = new TreeMap<String,Long>();
+		for( Map.Entry<String,AtomicLong> e : counters.entrySet() )
+			snapshot.put(e.getKey(), e.getValue().get());
+		for( Map.Entry<String,Gauge> e : gauges.entrySet() )
+			snapshot.put(e.getKey(), e.getValue().value());
+
+		return snapshot;
+	}
+}
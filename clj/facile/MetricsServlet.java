@@ -0,0 +1,31 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Dumps the Metrics registry as plain text, one "name value" pair per line.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final PrintWriter out = resp.getWriter();
+		for( Map.Entry<String,Long> e : Metrics.snapshot().entrySet() )
+			out.println(e.getKey() + " " + e.getValue());
+	}
+}
@@ -0,0 +1,76 @@
+package clj.facile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+
+/**
+ * Helpers for partial (AJAX) requests. A partial request carries the client
+ * ids of the components to execute and the client ids of the components to
+ * render; everything else in the view is left alone.
+ */
+public class PartialRequest {
+
+	public static final String PARTIAL_PARAM = "clj.facile.partial";
+	public static final String EXECUTE_PARAM = "clj.facile.execute";
+	public static final String RENDER_PARAM = "clj.facile.render";
+
+	@SuppressWarnings("unchecked")
+	public static boolean isPartial(FacesContext ctx) {
+		final Map<String,String> parms = ctx.getExternalContext().getRequestParameterMap();
+		return parms.containsKey(PARTIAL_PARAM);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> ids(FacesContext ctx, String param) {
+
+		final Map<String,String> parms = ctx.getExternalContext().getRequestParameterMap();
+		final String value = parms.get(param);
+		if( null == value )
+			return null;
+
+		final List<String> ids = new ArrayList<String>();
+		for( String id : value.split("[\\s,]+") ) {
+			if( id.length() > 0 )
+				ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * The client ids to run through decode, validation and model update, or
+	 * null if this is not a partial request.
+	 */
+	public static List<String> executeIds(FacesContext ctx) {
+		if( !isPartial(ctx) )
+			return null;
+
+		final List<String> ids = ids(ctx, EXECUTE_PARAM);
+		return (null != ids) ? ids : new ArrayList<String>();
+	}
+
+	/**
+	 * The client ids to render. Defaults to the executed ids when the client
+	 * did not ask for anything in particular.
+	 */
+	public static List<String> renderIds(FacesContext ctx) {
+		if( !isPartial(ctx) )
+			return null;
+
+		final List<String> ids = ids(ctx, RENDER_PARAM);
+		return (null != ids) ? ids : executeIds(ctx);
+	}
+
+	public static UIComponent find(UIViewRoot root, String clientId) {
+		try {
+			return root.findComponent(":" + clientId);
+		} catch( IllegalArgumentException e ) {
+			// Not a naming container along the way
+			return null;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package clj.facile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * A fragment of markup that doesn't change, kept compressed so that it can
+ * be spliced into a compressed response instead of being compressed again
+ * on every request; see Compression.write. Compressed once per character
+ * encoding, at the best compression level.
+ */
+public class Precompressed {
+
+	private static final ConcurrentHashMap<String,Precompressed> interned = new ConcurrentHashMap<String,Precompressed>();
+
+	static class Encoded {
+		final String charset;
+		final byte[] raw;
+		final byte[] deflated;
+
+		Encoded(String charset, byte[] raw, byte[] deflated) {
+			this.charset = charset;
+			this.raw = raw;
+			this.deflated = deflated;
+		}
+	}
+
+	private final String markup;
+	private volatile Encoded encoded;
+
+	public Precompressed(String markup) {
+		this.markup = markup;
+	}
+
+	/**
+	 * The shared fragment for 'markup'
+	 */
+	public static Precompressed of(String markup) {
+		Precompressed p = interned.get(markup);
+		if( null == p ) {
+			interned.putIfAbsent(markup, new Precompressed(markup));
+			p = interned.get(markup);
+		}
+		return p;
+	}
+
+	public String getMarkup() {
+		return markup;
+	}
+
+	Encoded encoded(String charset) throws UnsupportedEncodingException {
+
+		Encoded e = encoded;
+		if( null != e && e.charset.equalsIgnoreCase(charset) )
+			return e;
+
+		final byte[] raw = markup.getBytes(charset);
+
+		// Raw deflate, ending in a sync flush rather than a final block, so
+		// that the stream can go on after it
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		final ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 4 + 16);
+		final byte[] buf = new byte[8192];
+		deflater.setInput(raw);
+		int n;
+		do {
+			n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+			deflated.write(buf, 0, n);
+		} while( n == buf.length || !deflater.needsInput() );
+		deflater.end();
+
+		e = new Encoded(charset, raw, deflated.toByteArray());
+		encoded = e;
+		return e;
+	}
+
+	@Override
+	public String toString() {
+		return markup;
+	}
+}
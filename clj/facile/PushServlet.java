@@ -0,0 +1,212 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import clojure.lang.Var;
+
+/**
+ * Streams change notifications to browsers as server-sent events. A page
+ * subscribes to its view id, e.g. /push/foo/bar for the view foo/bar, and
+ * receives
+ *
+ *   event: update
+ *   data: form:total form:count
+ *
+ * whenever a Var bound by the listed components changes. Changes are
+ * coalesced per view over a short interval; the client then fetches the
+ * new markup for just those components with a partial request.
+ */
+public class PushServlet extends HttpServlet implements ViewDependencies.Listener {
+
+	static final Logger log = Logger.getLogger(PushServlet.class.getName());
+
+	private static final long serialVersionUID = 1L;
+
+	// Init parameters ///////////////////////////////////////////////////////
+	private static final String INTERVAL = "clj.facile.push.interval";
+	private static final String HEARTBEAT = "clj.facile.push.heartbeat";
+
+	private long interval;
+	private long heartbeat;
+	private ScheduledExecutorService scheduler;
+
+	// view id -> subscribed clients
+	private final ConcurrentHashMap<String,Set<AsyncContext>> subscribers = new ConcurrentHashMap<String,Set<AsyncContext>>();
+
+	// view id -> client ids waiting to be pushed
+	private final ConcurrentHashMap<String,Set<String>> pending = new ConcurrentHashMap<String,Set<String>>();
+
+	private static long longParameter(ServletConfig config, String name, long defaultValue) {
+		final String value = config.getInitParameter(name);
+		if( null == value || value.trim().length() <= 0 )
+			return defaultValue;
+
+		return Long.parseLong(value.trim());
+	}
+
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		super.init(config);
+
+		this.interval = longParameter(config, INTERVAL, 250);
+		this.heartbeat = longParameter(config, HEARTBEAT, 30000);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// Keep idle connections alive and notice the ones that went away
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for( String viewId : subscribers.keySet() )
+					send(viewId, ": heartbeat\n\n");
+			}
+		}, this.heartbeat, this.heartbeat, TimeUnit.MILLISECONDS);
+
+		ViewDependencies.addListener(this);
+	}
+
+	@Override
+	public void destroy() {
+		ViewDependencies.removeListener(this);
+		this.scheduler.shutdownNow();
+
+		for( Set<AsyncContext> clients : subscribers.values() ) {
+			for( AsyncContext client : clients )
+				client.complete();
+		}
+		subscribers.clear();
+	}
+
+	private void unsubscribe(String viewId, AsyncContext client) {
+		final Set<AsyncContext> clients = subscribers.get(viewId);
+		if( null != clients )
+			clients.remove(client);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		final String pathInfo = req.getPathInfo();
+		if( null == pathInfo || pathInfo.length() <= 1 ) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		final String viewId = pathInfo.substring(1);
+
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final AsyncContext client = req.startAsync();
+		client.setTimeout(0);
+		client.addListener(new AsyncListener() {
+			public void onComplete(AsyncEvent ev) { unsubscribe(viewId, client); }
+			public void onTimeout(AsyncEvent ev) { unsubscribe(viewId, client); }
+			public void onError(AsyncEvent ev) { unsubscribe(viewId, client); }
+			public void onStartAsync(AsyncEvent ev) {}
+		});
+
+		Set<AsyncContext> clients = subscribers.get(viewId);
+		if( null == clients ) {
+			subscribers.putIfAbsent(viewId, Collections.newSetFromMap(new ConcurrentHashMap<AsyncContext,Boolean>()));
+			clients = subscribers.get(viewId);
+		}
+		clients.add(client);
+
+		final PrintWriter out = resp.getWriter();
+		out.print(": subscribed to " + viewId + "\n\n");
+		out.flush();
+
+		log.finest("Subscribed " + client + " to " + viewId);
+	}
+
+	// Pushing ///////////////////////////////////////////////////////////////
+
+	public void changed(Var var) {
+
+		for( Map.Entry<String,Set<String>> e : ViewDependencies.affected(var).entrySet() ) {
+
+			final String viewId = e.getKey();
+			if( !subscribers.containsKey(viewId) )
+				continue;
+
+			// The first change in an interval schedules the flush; later
+			// changes just add their ids to the batch
+			Set<String> batch = pending.get(viewId);
+			if( null == batch ) {
+				final Set<String> fresh = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+				batch = pending.putIfAbsent(viewId, fresh);
+				if( null == batch ) {
+					batch = fresh;
+					scheduler.schedule(new Runnable() {
+						public void run() {
+							flush(viewId);
+						}
+					}, this.interval, TimeUnit.MILLISECONDS);
+				}
+			}
+			batch.addAll(e.getValue());
+		}
+	}
+
+	private void flush(String viewId) {
+
+		final Set<String> batch = pending.remove(viewId);
+		if( null == batch || batch.isEmpty() )
+			return;
+
+		final StringBuilder ids = new StringBuilder();
+		for( String id : new HashSet<String>(batch) ) {
+			if( ids.length() > 0 )
+				ids.append(' ');
+			ids.append(id);
+		}
+
+		send(viewId, "event: update\ndata: " + ids + "\n\n");
+	}
+
+	private void send(String viewId, String message) {
+
+		final Set<AsyncContext> clients = subscribers.get(viewId);
+		if( null == clients )
+			return;
+
+		for( AsyncContext client : clients ) {
+			try {
+				final PrintWriter out = client.getResponse().getWriter();
+				out.print(message);
+				out.flush();
+
+				if( out.checkError() )
+					throw new IOException("Client went away");
+
+			} catch( Exception e ) {
+				log.finest("Dropping " + client + ": " + e.getMessage());
+				unsubscribe(viewId, client);
+				try {
+					client.complete();
+				} catch( IllegalStateException ee ) {
+					// Already completed
+				}
+			}
+		}
+	}
+}
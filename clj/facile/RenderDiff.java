@@ -0,0 +1,392 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.faces.component.UIComponent;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.faces.context.ResponseWriter;
+
+/**
+ * Render-diff mode: the page body is rendered into a buffer while the
+ * components it is made of are noted, and each component's markup is hashed.
+ * The hashes are kept in the session under a token that the page carries.
+ * When the client posts back with that token, only the components whose
+ * markup changed are sent, in a <partial-response> like a partial request's.
+ *
+ * Each component gets two hashes: its own markup with its children left out
+ * ('skeleton') and its whole markup. A component that changed is sent whole
+ * if it writes an element with its client id; otherwise, if only its
+ * children changed, they are looked at in turn. If that fails all the way
+ * up, the client gets the whole page. View state is left out of the hashes;
+ * it changes on every request and is sent separately.
+ *
+ * A partial response also changes the page, so the components it sends are
+ * hashed the same way and the client gets a new token for the page as
+ * patched; see patch().
+ */
+public class RenderDiff {
+
+	// Context parameter turning render-diff mode on
+	public static final String ENABLED = "clj.facile.render-diff";
+	// Request parameter carrying the token of the page being posted back
+	public static final String TOKEN_PARAM = "clj.facile.diff";
+
+	static final String RENDERS = "clj.facile.renders";
+	static final String CURRENT = "clj.facile.render-diff";
+	static final int MAX_RENDERS = 8;
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final Random random = new Random();
+
+	/**
+	 * A component's markup: [start, end) in the buffer.
+	 */
+	public static class Node {
+		final String clientId;
+		final int start;
+		int end;
+		final List<Node> children = new ArrayList<Node>(4);
+		List<int[]> excluded;
+
+		long skeleton;
+		long full;
+		boolean patchable;
+
+		Node(String clientId, int start) {
+			this.clientId = clientId;
+			this.start = start;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+	}
+
+	/**
+	 * The hashes of one rendering of a view.
+	 */
+	static class Render implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final String viewId;
+		final HashMap<String,long[]> hashes;
+
+		Render(String viewId, HashMap<String,long[]> hashes) {
+			this.viewId = viewId;
+			this.hashes = hashes;
+		}
+	}
+
+	/**
+	 * The most recent renderings of a session, by token.
+	 */
+	static class Renders extends LinkedHashMap<String,Render> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Render> eldest) {
+			return size() > MAX_RENDERS;
+		}
+	}
+
+	private final FacesContext ctx;
+	private final StringWriter buffer;
+	private final ResponseWriter writer;
+	private final ArrayList<Node> stack = new ArrayList<Node>();
+	private Node root;
+	private String text;
+	private List<Node> updates;
+
+	public static boolean isEnabled(FacesContext ctx) {
+		return Boolean.valueOf(ctx.getExternalContext().getInitParameter(ENABLED));
+	}
+
+	/**
+	 * The render-diff recording the current request's body, if any.
+	 */
+	public static RenderDiff current(FacesContext ctx) {
+		return (RenderDiff)ctx.getExternalContext().getRequestMap().get(CURRENT);
+	}
+
+	@SuppressWarnings("unchecked")
+	public RenderDiff(FacesContext ctx, ResponseWriter out) {
+		this.ctx = ctx;
+		this.buffer = new StringWriter();
+		this.writer = out.cloneWithWriter(buffer);
+		ctx.getExternalContext().getRequestMap().put(CURRENT, this);
+	}
+
+	/**
+	 * The writer to render the body with.
+	 */
+	public ResponseWriter getWriter() {
+		return writer;
+	}
+
+	public void begin(UIComponent component) throws IOException {
+		// Flushing closes a pending start tag, so it isn't counted as ours
+		writer.flush();
+		final String clientId = component.getClientId(ctx);
+		stack.add(new Node((null == clientId) ? "" : clientId, buffer.getBuffer().length()));
+	}
+
+	public void end() throws IOException {
+		writer.flush();
+		final Node node = stack.remove(stack.size() - 1);
+		node.end = buffer.getBuffer().length();
+		if( stack.isEmpty() )
+			root = node;
+		else
+			stack.get(stack.size() - 1).children.add(node);
+	}
+
+	/**
+	 * Leave what is written until excludeEnd() out of the hashes.
+	 */
+	public void excludeBegin() throws IOException {
+		writer.flush();
+		final Node node = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+		if( null == node )
+			return;
+		if( null == node.excluded )
+			node.excluded = new ArrayList<int[]>(1);
+		node.excluded.add(new int[] { buffer.getBuffer().length(), -1 });
+	}
+
+	public void excludeEnd() throws IOException {
+		writer.flush();
+		final Node node = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+		if( null != node && null != node.excluded )
+			node.excluded.get(node.excluded.size() - 1)[1] = buffer.getBuffer().length();
+	}
+
+	/**
+	 * Stop recording; returns the rendered body.
+	 */
+	public String finish() throws IOException {
+		writer.flush();
+		ctx.getExternalContext().getRequestMap().remove(CURRENT);
+		text = buffer.toString();
+		return text;
+	}
+
+	public String markup(Node node) {
+		return text.substring(node.start, node.end);
+	}
+
+	// Hashing ///////////////////////////////////////////////////////////////
+
+	private static long fnv(long h, CharSequence s, int from, int to) {
+		for( int i = from; i < to; i++ ) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static long mix(long h, long v) {
+		for( int i = 0; i < 8; i++ ) {
+			h ^= (v >>> (i * 8)) & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Whether the node's markup starts with an element carrying its client
+	 * id, so the client can find and replace it.
+	 */
+	private boolean patchable(Node node) {
+		if( node.clientId.length() == 0 )
+			return false;
+
+		int i = node.start;
+		while( i < node.end && Character.isWhitespace(text.charAt(i)) )
+			i++;
+		if( i >= node.end || text.charAt(i) != '<' )
+			return false;
+
+		final int close = text.indexOf('>', i);
+		if( close < 0 || close > node.end )
+			return false;
+		return text.substring(i, close).contains(" id=\"" + node.clientId + "\"");
+	}
+
+	private void hash(Node node, HashMap<String,long[]> hashes) {
+
+		final List<int[]> excluded = (null == node.excluded) ? new ArrayList<int[]>(0) : node.excluded;
+
+		// Own markup, with the children's and the excluded ranges left out
+		long h = FNV_OFFSET;
+		int pos = node.start, c = 0, e = 0;
+		while( c < node.children.size() || e < excluded.size() ) {
+			final Node child = (c < node.children.size()) ? node.children.get(c) : null;
+			final int[] ex = (e < excluded.size()) ? excluded.get(e) : null;
+
+			if( null != child && (null == ex || child.start <= ex[0]) ) {
+				h = fnv(h, text, pos, child.start);
+				h = fnv(h, child.clientId, 0, child.clientId.length());
+				hash(child, hashes);
+				pos = child.end;
+				c++;
+			} else {
+				h = fnv(h, text, pos, ex[0]);
+				pos = (ex[1] < 0) ? node.end : ex[1];
+				e++;
+			}
+		}
+		h = fnv(h, text, pos, node.end);
+
+		node.skeleton = h;
+		node.full = h;
+		for( Node child : node.children )
+			node.full = mix(node.full, child.full);
+		node.patchable = patchable(node);
+
+		hashes.put(node.clientId, new long[] { node.skeleton, node.full });
+	}
+
+	/**
+	 * Add to 'updates' what has to be sent for the client to have 'node';
+	 * false if it can't be done below 'node'.
+	 */
+	private static boolean diff(Node node, Map<String,long[]> previous, List<Node> updates) {
+
+		final long[] old = previous.get(node.clientId);
+		if( null != old && old[1] == node.full )
+			return true;
+
+		if( null != old && old[0] == node.skeleton ) {
+			final List<Node> childUpdates = new ArrayList<Node>();
+			boolean ok = true;
+			for( Node child : node.children )
+				ok = ok && diff(child, previous, childUpdates);
+			if( ok ) {
+				updates.addAll(childUpdates);
+				return true;
+			}
+		}
+
+		if( node.patchable ) {
+			updates.add(node);
+			return true;
+		}
+		return false;
+	}
+
+	// Session ///////////////////////////////////////////////////////////////
+
+	@SuppressWarnings("unchecked")
+	private static Renders renders(FacesContext ctx) {
+		final Map<String,Object> session = ctx.getExternalContext().getSessionMap();
+		synchronized( session ) {
+			Renders renders = (Renders)session.get(RENDERS);
+			if( null == renders ) {
+				renders = new Renders();
+				session.put(RENDERS, renders);
+			}
+			return renders;
+		}
+	}
+
+	/**
+	 * Hash what was rendered and keep it in the session; returns the token
+	 * the page should carry. For a client posting back an earlier token,
+	 * works out what it needs; see getUpdates().
+	 */
+	public String save(String viewId) {
+
+		final HashMap<String,long[]> hashes = hashes();
+
+		final ExternalContext extCtx = ctx.getExternalContext();
+		final String previousToken = (String)extCtx.getRequestParameterMap().get(TOKEN_PARAM);
+		final String token = newToken();
+
+		final Renders renders = renders(ctx);
+		final Render previous;
+		synchronized( renders ) {
+			previous = (null == previousToken) ? null : renders.get(previousToken);
+			renders.put(token, new Render(viewId, hashes));
+		}
+
+		if( null != root && null != previous && viewId.equals(previous.viewId) ) {
+			final List<Node> changes = new ArrayList<Node>();
+			if( diff(root, previous.hashes, changes) )
+				updates = changes;
+		}
+		return token;
+	}
+
+	/**
+	 * After a partial response sent the components in 'rendered', each
+	 * recorded by its own RenderDiff, update the hashes of the page the
+	 * client posted the token of and keep them under a new token, which is
+	 * returned. The old token is dropped, as it no longer describes the
+	 * page; null if the client sent none or its rendering is gone.
+	 */
+	public static String patch(FacesContext ctx, String viewId, Map<UIComponent,RenderDiff> rendered) {
+
+		final String previousToken = (String)ctx.getExternalContext().getRequestParameterMap().get(TOKEN_PARAM);
+		if( null == previousToken )
+			return null;
+
+		final Renders renders = renders(ctx);
+		synchronized( renders ) {
+			final Render previous = renders.remove(previousToken);
+			if( null == previous || !viewId.equals(previous.viewId) )
+				return null;
+
+			final HashMap<String,long[]> hashes = new HashMap<String,long[]>(previous.hashes);
+			for( Map.Entry<UIComponent,RenderDiff> e : rendered.entrySet() ) {
+				hashes.putAll(e.getValue().hashes());
+
+				// The ancestors' own markup is as it was, but not their whole
+				for( UIComponent parent = e.getKey().getParent(); null != parent; parent = parent.getParent() ) {
+					// Keyed as begin() keys them
+					final String clientId = parent.getClientId(ctx);
+					final String key = (null == clientId) ? "" : clientId;
+					final long[] old = hashes.get(key);
+					if( null != old )
+						hashes.put(key, new long[] { old[0], ~old[1] });
+				}
+			}
+
+			final String token = newToken();
+			renders.put(token, new Render(viewId, hashes));
+			return token;
+		}
+	}
+
+	private static String newToken() {
+		return Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+	}
+
+	/**
+	 * The hashes of what was rendered, by client id
+	 */
+	private HashMap<String,long[]> hashes() {
+		final HashMap<String,long[]> hashes = new HashMap<String,long[]>();
+		if( null != root )
+			hash(root, hashes);
+		return hashes;
+	}
+
+	/**
+	 * The components to send to a client that posted back an earlier page,
+	 * possibly none; null if it has to get the whole page.
+	 */
+	public List<Node> getUpdates() {
+		return updates;
+	}
+}
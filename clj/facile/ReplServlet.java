@@ -1,13 +1,18 @@
 package clj.facile;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.faces.FactoryFinder;
 import javax.faces.application.Application;
@@ -22,12 +27,15 @@ import javax.servlet.http.HttpSession;
 
 import clj.facile.repl.History;
 import clj.facile.repl.ReplServer;
+import clojure.lang.DynamicClassLoader;
 import clojure.lang.Namespace;
 import clojure.lang.RT;
 import clojure.lang.Var;
 
 public class ReplServlet extends HttpServlet {
 
+	private static final long serialVersionUID = 1L;
+
 	// Session keys //////////////////////////////////////////////////////////
 	private static final String HISTORY = "clj.facile.repl.history";
 	private static final String FORM = "clj.facile.repl.form";
@@ -36,10 +44,24 @@ public class ReplServlet extends HttpServlet {
 	private static final String REPL_DEFAULT_NAMESPACE = "clj.facile.repl.default-ns";
 	private static final String EDITOR = "clj.facile.buffer";
 	
+	// Init parameters ///////////////////////////////////////////////////////
+	private static final String REPL_THREADS = "clj.facile.repl.threads";
+	private static final String REPL_TIMEOUT = "clj.facile.repl.timeout";
+	private static final String REPL_MAX_OUTPUT = "clj.facile.repl.max-output";
+	private static final String REPL_PRINT_LENGTH = "clj.facile.repl.print-length";
+	private static final String REPL_PRINT_LEVEL = "clj.facile.repl.print-level";
+	private static final String REPL_HISTORY_CAPACITY = "clj.facile.repl.history.capacity";
+	private static final String REPL_HISTORY_BYTES = "clj.facile.repl.history.bytes";
+	
 	private static final Var FACES_APPLICATION = RT.var("clj.facile", "*facesApp*");
 	
-    private List<ReplServer> runningRepls;
+    private Collection<ReplServer> runningRepls;
+    private ExecutorService evaluators;
+    private ReplServer.Limits limits;
     private String defaultNamespace;
+    private int historyCapacity = History.DEFAULT_CAPACITY;
+    private long historyBytes = History.DEFAULT_BYTES;
+    private File historyDirectory;
     
     private void initSession(HttpSession session) {
     
@@ -52,16 +74,17 @@ public class ReplServlet extends HttpServlet {
     	final ApplicationFactory appFactory = (ApplicationFactory)FactoryFinder.getFactory(FactoryFinder.APPLICATION_FACTORY);
     	final Application facesApp = appFactory.getApplication();
     	
-    	// Instantiate a new REPL server
+    	// Instantiate a new REPL session; it is closed when the HTTP session 
+    	// lets go of it
     	final ReplServer repl = new ReplServer(session.getId(),
-    			session.getMaxInactiveInterval(), 
     			this.defaultNamespace, 
+    			this.evaluators,
     			this.runningRepls,
-    			RT.map(FACES_APPLICATION, facesApp));
+    			RT.map(FACES_APPLICATION, facesApp),
+    			this.limits);
     	session.setAttribute(REPL_SERVER, repl);
     	
-    	// Start the server and get the namespace
-    	repl.start();
+    	// Get the namespace
     	session.setAttribute(NAMESPACE, repl.currentNamespace());
     	
     	// Clear the editor
@@ -69,7 +92,8 @@ public class ReplServlet extends HttpServlet {
     }
     
     private void clearHistory(HttpSession session) {
-    	session.setAttribute(HISTORY, new History());
+    	// Replacing the attribute unbinds the old history, which drops its archive
+    	session.setAttribute(HISTORY, new History(this.historyCapacity, this.historyBytes, this.historyDirectory));
     }
     
     private History getHistory(HttpSession session) {
@@ -87,23 +111,61 @@ public class ReplServlet extends HttpServlet {
 		if( null == this.defaultNamespace || this.defaultNamespace.length() <= 0 )
 			this.defaultNamespace = "repl";
 		
-		// Configure the Clojure class-loader with the WAR resource path
-		try {
-			RT.addURL("file://" + ctx.getRealPath("/"));
-		} catch( Exception e ) {
-			throw new ServletException("Couldn't add servlet context to Clojure classpath", e);
+		// Configure the Clojure class-loader with the WAR resource path; only
+		// possible where the container's loader is Clojure's
+		if( Thread.currentThread().getContextClassLoader() instanceof DynamicClassLoader ) {
+			try {
+				RT.addURL("file://" + ctx.getRealPath("/"));
+			} catch( Exception e ) {
+				throw new ServletException("Couldn't add servlet context to Clojure classpath", e);
+			}
+		} else {
+			ctx.log("REPL: namespaces load from the class path, not the servlet context");
 		}
 		
-		this.runningRepls = new LinkedList<ReplServer>();
+		this.runningRepls = Collections.newSetFromMap(new ConcurrentHashMap<ReplServer,Boolean>());
+		
+		// All sessions share one pool of evaluators
+		final String threads = config.getInitParameter(REPL_THREADS);
+		this.evaluators = Executors.newFixedThreadPool(
+				(null != threads && threads.trim().length() > 0)
+					? Integer.parseInt(threads.trim())
+					: Runtime.getRuntime().availableProcessors());
+		
+		// What each evaluation may consume
+		this.limits = new ReplServer.Limits();
+		final String timeout = config.getInitParameter(REPL_TIMEOUT);
+		if( null != timeout )
+			this.limits.timeout = Long.parseLong(timeout.trim());
+		final String maxOutput = config.getInitParameter(REPL_MAX_OUTPUT);
+		if( null != maxOutput )
+			this.limits.maxOutput = Integer.parseInt(maxOutput.trim());
+		final String printLength = config.getInitParameter(REPL_PRINT_LENGTH);
+		if( null != printLength )
+			this.limits.printLength = Integer.valueOf(printLength.trim());
+		final String printLevel = config.getInitParameter(REPL_PRINT_LEVEL);
+		if( null != printLevel )
+			this.limits.printLevel = Integer.valueOf(printLevel.trim());
+		
+		// How much history each session keeps in memory; the rest is archived
+		// in the container's scratch directory
+		final String historyCapacity = config.getInitParameter(REPL_HISTORY_CAPACITY);
+		if( null != historyCapacity )
+			this.historyCapacity = Integer.parseInt(historyCapacity.trim());
+		final String historyBytes = config.getInitParameter(REPL_HISTORY_BYTES);
+		if( null != historyBytes )
+			this.historyBytes = Long.parseLong(historyBytes.trim());
+		this.historyDirectory = (File)ctx.getAttribute("javax.servlet.context.tempdir");
 	}
 	
 	@Override
 	public void destroy() {
 	
-		// Clean up running REPLs (we create a copy of the list to prevent any ConcurrentModificationExceptions
-		for( ReplServer repl : this.runningRepls.toArray(new ReplServer[this.runningRepls.size()]) ) {
-			repl.interrupt();
+		// Clean up running REPLs
+		for( ReplServer repl : this.runningRepls ) {
+			repl.close();
 		}
+		this.evaluators.shutdownNow();
 	}
 
 	// Rendering /////////////////////////////////////////////////////////////
@@ -154,6 +216,60 @@ public class ReplServlet extends HttpServlet {
 		out.println("</p>");
 	}
 	
+	private int renderTime(PrintWriter out, History.Item item, int minute) {
+		
+		// Print a timestamp every minute
+		if( item.when.get(Calendar.MINUTE) != minute ) {
+				
+				out.println("<tr>");
+			
+				// Format the date
+				final String time = DateFormat.getTimeInstance(DateFormat.SHORT).format(item.when.getTime());
+				out.println("<td class=\"time\">" + time + "</td>");
+				
+				out.println("<td></td></tr>");
+		} else {
+			out.print("<tr><td></td><td></td></tr>");
+		}
+		return item.when.get(Calendar.MINUTE);
+	}
+	
+	private void renderForm(HttpServletRequest request, PrintWriter out, String form, int line) {
+		
+		out.println("<tr>");
+		
+			// Line numbers
+			out.println("<td class=\"lineno\">line&nbsp;" + line + ":&nbsp;</td>");	
+			
+			// Generate back-links to the history
+			out.println("<td><a href=\"" + request.getRequestURI() + "?history=" + line + "\">" 
+								+ escapeHtml(form) 
+								+ "</a></td>");
+		out.println("</tr>");
+	}
+	
+	private void renderStderr(PrintWriter out, String stderr) {
+
+		final String[] errLines = stderr.split("\n"); 
+		out.println("<span class=\"stderr\">");
+			for( int i=0; i<errLines.length; i++ )
+				if( errLines[i].length() > 0 )
+					out.println(errLines[i] + "<br />");
+		out.println("</span>");
+	}
+	
+	private void renderValue(PrintWriter out, String valueString) {
+		
+		out.println("<tr>");
+						
+			out.println("<td></td>");
+			out.println("<td><pre style=\"font-style: italic\">"
+					+ escapeHtml(valueString) 
+					+ "</pre></td>");
+		
+		out.println("</tr>");
+	}
+	
 	private void renderHistory(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		
 		final HttpSession session = request.getSession();
@@ -164,34 +280,10 @@ public class ReplServlet extends HttpServlet {
 		out.println("<table id=\"history\" class=\"history\">");
 		
 		int minute = -1;
-		int line = 0;
 		for( History.Item item : history ) {
 		
-			// Print a timestamp every minute
-			if( item.when.get(Calendar.MINUTE) != minute ) {
-					
-					out.println("<tr>");
-				
-					// Format the date
-					final String time = DateFormat.getTimeInstance(DateFormat.SHORT).format(item.when.getTime());
-					out.println("<td class=\"time\">" + time + "</td>");
-					
-					minute = item.when.get(Calendar.MINUTE);
-					out.println("<td></td></tr>");
-			} else {
-				out.print("<tr><td></td><td></td></tr>");
-			}
-
-			out.println("<tr>");
-			
-				// Line numbers
-				out.println("<td class=\"lineno\">line&nbsp;" + line + ":&nbsp;</td>");	
-				
-				// Generate back-links to the history
-				out.println("<td><a href=\"" + request.getRequestURI() + "?history=" + line + "\">" 
-									+ escapeHtml(item.eval.form) 
-									+ "</a></td>");
-			out.println("</tr>");
+			minute = renderTime(out, item, minute);
+			renderForm(request, out, item.eval.form, item.seq);
 			
 			// Print the output on stdout and stderr
 			out.println("<tr>");
@@ -204,30 +296,111 @@ public class ReplServlet extends HttpServlet {
 							out.println(outLines[i] + "<br />");
 				out.println("</span>");
 				// Stderr
-				final String[] errLines = item.eval.stderr.split("\n"); 
-				out.println("<span class=\"stderr\">");
-					for( int i=0; i<errLines.length; i++ )
-						if( errLines[i].length() > 0 )
-							out.println(errLines[i] + "<br />");
-				out.println("</span>");
+				renderStderr(out, item.eval.stderr);
 				out.println("</td>");
 			out.println("</tr>");
 			
 			// Print the result
-			out.println("<tr>");
-							
-				out.println("<td></td>");
-				out.println("<td><pre style=\"font-style: italic\">"
-						+ escapeHtml(item.eval.valueString) 
-						+ "</pre></td>");
-			
-			out.println("</tr>");
-			line++;
+			renderValue(out, item.eval.valueString);
 		}
 		
 		out.println("</table>");
 	}
 
+	// Streaming /////////////////////////////////////////////////////////////
+	
+	/**
+	 * Copies stdout to the client as it is written, escaped, flushing at the
+	 * end of every line. Closed once the evaluation is over (or abandoned) so
+	 * a straggling evaluation can't write into someone else's response.
+	 */
+	private class StreamingWriter extends Writer {
+		
+		private final PrintWriter out;
+		private final HttpServletResponse response;
+		private boolean closed;
+		
+		StreamingWriter(PrintWriter out, HttpServletResponse response) {
+			this.out = out;
+			this.response = response;
+		}
+
+		@Override
+		public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+			if( closed )
+				return;
+			
+			final String text = new String(cbuf, off, len);
+			out.print(escapeHtml(text));
+			if( text.indexOf('\n') >= 0 )
+				flush();
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if( closed )
+				return;
+			
+			out.flush();
+			response.flushBuffer();
+		}
+
+		@Override
+		public synchronized void close() {
+			closed = true;
+		}
+	}
+	
+	/**
+	 * Evaluates 'input' and streams back just the rows of the new history
+	 * entry, stdout included as it is produced. The page's script appends
+	 * them to the history table.
+	 */
+	private void streamEval(HttpServletRequest request, HttpServletResponse response, ReplServer repl, String input) throws IOException {
+		
+		final HttpSession session = request.getSession();
+		final History history = getHistory(session);
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/html");
+		response.setHeader("Cache-Control", "no-cache");
+		final PrintWriter out = response.getWriter();
+		
+		// The new entry, up to its output
+		final int line = history.size();
+		final History.Item last = (line > 0) ? history.get(line-1) : null;
+		final Calendar now = Calendar.getInstance();
+		if( null == last || last.when.get(Calendar.MINUTE) != now.get(Calendar.MINUTE) ) {
+			out.println("<tr><td class=\"time\">" 
+					+ DateFormat.getTimeInstance(DateFormat.SHORT).format(now.getTime()) 
+					+ "</td><td></td></tr>");
+		}
+		renderForm(request, out, input, line);
+		out.println("<tr><td></td><td class=\"output\"><span class=\"stdout\">");
+		out.flush();
+		response.flushBuffer();
+		
+		// Stream stdout while it runs
+		final StreamingWriter echo = new StreamingWriter(out, response);
+		final ReplServer.Evaluation eval;
+		try {
+			eval = repl.eval(input, echo);
+		} finally {
+			echo.close();
+		}
+		out.println("</span>");
+		
+		renderStderr(out, eval.stderr);
+		out.println("</td></tr>");
+		renderValue(out, eval.valueString);
+		
+		// Tell the page which namespace we ended up in
+		out.println("<tr class=\"ns\" style=\"display: none\"><td>" + eval.ns.getName() + "</td></tr>");
+		
+		session.setAttribute(NAMESPACE, eval.ns);
+		history.enqueue(eval);
+	}
+	
 	private void renderEditor(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
 		final HttpSession session = request.getSession();
@@ -305,10 +478,10 @@ public class ReplServlet extends HttpServlet {
 			// Render the input form
 			writer.println("<form name=\"repl\" method=\"POST\" action=\"" + request.getRequestURI() + "\">");
 				Namespace ns = (Namespace)session.getAttribute(NAMESPACE);
-				writer.println( "<span style=\"font-family: monospace\">" + ns.getName() + "&nbsp;&gt;&nbsp;</span>" );
+				writer.println( "<span id=\"prompt\" style=\"font-family: monospace\">" + ns.getName() + "&nbsp;&gt;&nbsp;</span>" );
 				
 				writer.println("<input class=\"repl\" style=\"width: 80em; font-family: monospace\" name=\"input\" type=\"text\" value=\"" + form + "\">");
-				writer.println("<input style=\"width: 5em;\" name=\"eval\" type=\"submit\" value=\"eval\" >");
+				writer.println("<input style=\"width: 5em;\" name=\"eval\" type=\"submit\" value=\"eval\" onclick=\"return replEval(this.form);\">");
 				writer.println("<input style=\"width: 6em;\" name=\"clear\" type=\"submit\" value=\"clear\" >");
 			writer.println("</form>");
 			
@@ -319,7 +492,31 @@ public class ReplServlet extends HttpServlet {
 			writer.println(
 					"<script>" +
 						"var hist = document.getElementById('history');\n" +
-						"hist.scrollTop=hist.scrollHeight;" +
+						"hist.scrollTop=hist.scrollHeight;\n" +
+						
+						// Evaluate without reloading the page: the response
+						// is the new history entry, streamed as it is produced
+						"function replEval(form) {\n" +
+						"  if( !window.XMLHttpRequest ) return true;\n" +
+						"  var entry = document.createElement('tbody');\n" +
+						"  hist.appendChild(entry);\n" +
+						"  var xhr = new XMLHttpRequest();\n" +
+						"  xhr.open('POST', form.action, true);\n" +
+						"  xhr.setRequestHeader('Content-Type', 'application/x-www-form-urlencoded');\n" +
+						"  xhr.onreadystatechange = function() {\n" +
+						"    if( xhr.readyState < 3 ) return;\n" +
+						"    entry.innerHTML = xhr.responseText;\n" +
+						"    hist.scrollTop = hist.scrollHeight;\n" +
+						"    if( xhr.readyState != 4 ) return;\n" +
+						"    var rows = entry.getElementsByTagName('tr');\n" +
+						"    for( var i=0; i<rows.length; i++ )\n" +
+						"      if( rows[i].className == 'ns' )\n" +
+						"        document.getElementById('prompt').innerHTML = rows[i].cells[0].innerHTML + '&nbsp;&gt;&nbsp;';\n" +
+						"  };\n" +
+						"  xhr.send('stream=true&eval=eval&input=' + encodeURIComponent(form.input.value));\n" +
+						"  form.input.value = '';\n" +
+						"  return false;\n" +
+						"}" +
 					"</script>");
 			
 			writer.println("</body>");
@@ -343,10 +540,10 @@ public class ReplServlet extends HttpServlet {
 
 		final String history = req.getParameter("history");
 		if( history != null ) {
-			int index = Integer.valueOf(history);
-			if( index >= 0 && index < getHistory(session).size() ) {
-				final ReplServer.Evaluation eval = (ReplServer.Evaluation)getHistory(session).get(index).eval;
-				req.setAttribute(FORM, escapeHtml(eval.form));
+			// Archived items are paged back in
+			final History.Item item = getHistory(session).get(Integer.valueOf(history));
+			if( null != item ) {
+				req.setAttribute(FORM, escapeHtml(item.eval.form));
 			// No such history item, redirect to the initial page
 			} else {
 				resp.sendRedirect(req.getRequestURI());
@@ -378,6 +575,14 @@ public class ReplServlet extends HttpServlet {
 		if( req.getParameter("eval") != null ) {
 			// Get the form to evaluate
 			final String input = req.getParameter("input");
+			
+			// Streaming clients only want the new history entry
+			if( req.getParameter("stream") != null ) {
+				if( null != input && input.trim().length() > 0 )
+					streamEval(req, resp, repl, input);
+				return;
+			}
+			
 			if( null != input ) { 
 				if( input.trim().length() > 0 ) {
 					// Evaluate it on the repl server.
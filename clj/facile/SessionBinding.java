@@ -0,0 +1,93 @@
+package clj.facile;
+
+import java.util.Map;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpSession;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+/**
+ * The value of a Var defined by defsession: a session attribute, created by
+ * 'init' the first time a session asks for it.
+ *
+ * ref() is the attribute itself, usually a Ref; deref() is its value, so
+ * (defsession name (ref "")) reads as @name. The attribute is looked up in
+ * the session once per request; later lookups in the same request find it in
+ * the request map, so the cache goes with the request.
+ *
+ * Containers that replicate sessions only see changes made with
+ * setAttribute, and can't tell that a Ref held in the session has changed.
+ * The Ref is held in a SessionValue, which watches it and sets it again on
+ * the session when its value actually changes, marking the attribute dirty.
+ */
+public class SessionBinding implements IDeref {
+
+	static final Var httpSession = RT.var("clj.facile", "*http-session*");
+	static final Var facesContext = RT.var("clj.facile", "*faces-context*");
+
+	private final String key;
+	private final IFn init;
+
+	// Request attribute caching the session attribute
+	private final String cacheKey;
+
+	public SessionBinding(String key, IFn init) {
+		this.key = key;
+		this.init = init;
+		this.cacheKey = "clj.facile.session-binding." + key;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * The session attribute: the Ref (or whatever 'init' returned) of the
+	 * current session.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object ref() throws Exception {
+
+		final Object ctx = facesContext.get();
+		final Map<String,Object> requestMap = (ctx instanceof FacesContext)
+			? ((FacesContext)ctx).getExternalContext().getRequestMap()
+			: null;
+		if( null != requestMap ) {
+			final Object cached = requestMap.get(cacheKey);
+			if( null != cached )
+				return cached;
+		}
+
+		final HttpSession session = (HttpSession)httpSession.get();
+		Object value = session.getAttribute(key);
+		// A value left out when the session was serialized starts over
+		if( null == value || (value instanceof SessionValue && ((SessionValue)value).isDropped()) ) {
+			value = new SessionValue(init.invoke());
+			session.setAttribute(key, value);
+		}
+
+		// Watching also covers values we didn't create, e.g. in a session
+		// restored on this node
+		final Object ref = (value instanceof SessionValue)
+			? ((SessionValue)value).watch(session, key)
+			: value;
+
+		if( null != requestMap && null != ref )
+			requestMap.put(cacheKey, ref);
+		return ref;
+	}
+
+	public Object deref() throws Exception {
+		final Object ref = ref();
+		return (ref instanceof IDeref) ? ((IDeref)ref).deref() : ref;
+	}
+
+	@Override
+	public String toString() {
+		return "#<SessionBinding " + key + ">";
+	}
+}
@@ -0,0 +1,190 @@
+package clj.facile;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+
+import clojure.lang.AFn;
+import clojure.lang.Atom;
+import clojure.lang.IDeref;
+import clojure.lang.IRef;
+import clojure.lang.RT;
+import clojure.lang.Ref;
+import clojure.lang.Util;
+
+/**
+ * How defsession keeps a value in the HttpSession. Serializing it writes the
+ * current value of the Ref (or Atom) it holds rather than the Ref itself,
+ * with its watches, validator and history; values that aren't Serializable,
+ * such as Clojure collections, are written in their printed form. Reading it
+ * back gives a fresh Ref holding the value.
+ *
+ * A value whose printed form doesn't read back equal to it (a Java object
+ * printed as #<...>, say) is left out, with a warning; once read back the
+ * SessionValue is dropped, and defsession initializes it again. Functions
+ * are Serializable, and are written as they are.
+ *
+ * The value is dirty from the time it is created or changed until
+ * clearDirty(), so a store can write out only the values that changed.
+ */
+public class SessionValue implements IDeref, Serializable {
+
+	static final Logger log = Logger.getLogger(SessionValue.class.getName());
+
+	private static final long serialVersionUID = 1L;
+
+	// How the value was wrapped
+	private static final byte PLAIN = 0;
+	private static final byte REF = 1;
+	private static final byte ATOM = 2;
+
+	// How the value was written
+	private static final byte SERIALIZED = 0;
+	private static final byte PRINTED = 1;
+	private static final byte DROPPED = 2;
+
+	private transient Object ref;
+	private transient volatile boolean dirty = true;
+	private transient boolean watched;
+	private transient boolean dropped;
+
+	public SessionValue(Object ref) {
+		this.ref = ref;
+	}
+
+	/**
+	 * The Ref (or whatever else defsession's initial value was).
+	 */
+	public Object ref() {
+		return ref;
+	}
+
+	public Object deref() throws Exception {
+		return (ref instanceof IDeref) ? ((IDeref)ref).deref() : ref;
+	}
+
+	/**
+	 * Whether the value was left out when this was serialized.
+	 */
+	public boolean isDropped() {
+		return dropped;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Clear the dirty bit; returns whether it was set.
+	 */
+	public boolean clearDirty() {
+		final boolean wasDirty = dirty;
+		dirty = false;
+		return wasDirty;
+	}
+
+	/**
+	 * Watch the Ref for changes. A change marks the value dirty and sets it
+	 * on 'session' again under 'key', which is how a replicating container
+	 * learns that an attribute has changed. Returns the Ref.
+	 */
+	public synchronized Object watch(final HttpSession session, final String key) {
+
+		if( watched || !(ref instanceof IRef) )
+			return ref;
+
+		((IRef)ref).addWatch(key, new AFn() {
+			@Override
+			public Object invoke(Object key, Object ref, Object oldVal, Object newVal) throws Exception {
+				if( oldVal != newVal ) {
+					dirty = true;
+					try {
+						session.setAttribute((String)key, SessionValue.this);
+					} catch( IllegalStateException e ) {
+						// Session has been invalidated
+					}
+				}
+				return null;
+			}
+		});
+		watched = true;
+
+		return ref;
+	}
+
+	// Serialization /////////////////////////////////////////////////////////
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+
+		final byte kind = (ref instanceof Ref) ? REF : (ref instanceof Atom) ? ATOM : PLAIN;
+		final Object value;
+		try {
+			value = (kind != PLAIN) ? ((IDeref)ref).deref() : ref;
+		} catch( Exception e ) {
+			throw new IOException("Couldn't dereference " + ref, e);
+		}
+
+		out.writeByte(kind);
+		if( null == value || value instanceof Serializable ) {
+			out.writeByte(SERIALIZED);
+			out.writeObject(value);
+		} else {
+			final String printed;
+			try {
+				printed = RT.printString(value);
+			} catch( Exception e ) {
+				throw new IOException("Couldn't print " + value, e);
+			}
+			if( readsBack(printed, value) ) {
+				out.writeByte(PRINTED);
+				out.writeObject(printed);
+			} else {
+				log.warning("Leaving out session value " + printed + ", which doesn't read back");
+				out.writeByte(DROPPED);
+			}
+		}
+	}
+
+	/**
+	 * Whether 'printed' reads back as something equal to 'value'.
+	 */
+	private static boolean readsBack(String printed, Object value) {
+		try {
+			return Util.equiv(value, RT.readString(printed));
+		} catch( Exception e ) {
+			return false;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+		final byte kind = in.readByte();
+		final byte how = in.readByte();
+		if( how == DROPPED ) {
+			dropped = true;
+			return;
+		}
+		final boolean printed = (how == PRINTED);
+		final Object value = in.readObject();
+
+		try {
+			final Object v = printed ? RT.readString((String)value) : value;
+			switch( kind ) {
+			case REF: ref = new Ref(v); break;
+			case ATOM: ref = new Atom(v); break;
+			default: ref = v;
+			}
+		} catch( Exception e ) {
+			throw new IOException("Couldn't read session value", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "#<SessionValue " + ref + ">";
+	}
+}
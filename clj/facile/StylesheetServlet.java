@@ -0,0 +1,64 @@
+package clj.facile;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the stylesheet bundles of Stylesheets at '<mapping>/<ns>.<hash>.css'.
+ * The hash is part of the URL, so a response can be cached for good; a
+ * request for an old hash is redirected to the current bundle.
+ */
+public class StylesheetServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long ONE_YEAR = 365L * 24 * 60 * 60;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		final String path = req.getPathInfo();
+		final Stylesheets.Bundle bundle = (null != path) ? Stylesheets.lookup(path.substring(1)) : null;
+		if( null == bundle ) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		// Stale link, e.g. from a page rendered before the namespace was reloaded
+		if( !path.substring(1).equals(bundle.fileName()) ) {
+			resp.setHeader("Cache-Control", "no-cache");
+			resp.sendRedirect(req.getContextPath() + req.getServletPath() + "/" + bundle.fileName());
+			return;
+		}
+
+		resp.setHeader("Cache-Control", "public, max-age=" + ONE_YEAR);
+		resp.setDateHeader("Expires", System.currentTimeMillis() + ONE_YEAR * 1000);
+		resp.setHeader("ETag", "\"" + bundle.hash + "\"");
+		resp.setHeader("Vary", "Accept-Encoding");
+
+		final String ifNoneMatch = req.getHeader("If-None-Match");
+		if( null != ifNoneMatch && ifNoneMatch.contains(bundle.hash) ) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/css; charset=UTF-8");
+
+		final String acceptEncoding = req.getHeader("Accept-Encoding");
+		final byte[] body;
+		if( null != acceptEncoding && acceptEncoding.contains("gzip") ) {
+			resp.setHeader("Content-Encoding", "gzip");
+			body = bundle.gzip;
+		} else
+			body = bundle.css;
+
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+	}
+}
@@ -0,0 +1,205 @@
+package clj.facile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The stylesheets defined by clj.facile.css/defstyles, bundled per namespace.
+ * A namespace's bundle is minified, hashed and compressed once, the first
+ * time it is asked for after its stylesheets change; FacileLoader clears a
+ * namespace's stylesheets before (re)loading it.
+ */
+public class Stylesheets {
+
+	static final Logger log = Logger.getLogger(Stylesheets.class.getName());
+
+	public static class Bundle {
+
+		public final String ns;
+		public final String hash;
+		public final byte[] css;
+		public final byte[] gzip;
+
+		Bundle(String ns, String css) throws IOException {
+			this.ns = ns;
+			this.css = css.getBytes("UTF-8");
+			this.hash = hash(this.css);
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+				{ def.setLevel(Deflater.BEST_COMPRESSION); }
+			};
+			gz.write(this.css);
+			gz.close();
+			this.gzip = bytes.toByteArray();
+		}
+
+		/**
+		 * The bundle's file name; changes whenever its content does.
+		 */
+		public String fileName() {
+			return ns + "." + hash + ".css";
+		}
+	}
+
+	// ns -> name -> minified stylesheet, in order of definition
+	private static final Map<String,Map<String,String>> sources = new ConcurrentHashMap<String,Map<String,String>>();
+	private static final Map<String,Bundle> bundles = new ConcurrentHashMap<String,Bundle>();
+
+	/**
+	 * Define (or redefine) stylesheet 'name' in namespace 'ns'; returns the
+	 * minified stylesheet.
+	 */
+	public static String define(String ns, String name, String css) {
+
+		final String minified = minify(css);
+
+		synchronized( sources ) {
+			Map<String,String> sheets = sources.get(ns);
+			if( null == sheets ) {
+				sheets = new LinkedHashMap<String,String>();
+				sources.put(ns, sheets);
+			}
+			sheets.put(name, minified);
+			bundles.remove(ns);
+		}
+
+		return minified;
+	}
+
+	/**
+	 * Forget the stylesheets of 'ns', e.g. because it is about to be reloaded.
+	 */
+	public static void clear(String ns) {
+		synchronized( sources ) {
+			sources.remove(ns);
+			bundles.remove(ns);
+		}
+	}
+
+	/**
+	 * The bundle for 'ns', or null if it defines no stylesheets.
+	 */
+	public static Bundle bundle(String ns) {
+
+		final Bundle bundle = bundles.get(ns);
+		if( null != bundle )
+			return bundle;
+
+		synchronized( sources ) {
+			final Map<String,String> sheets = sources.get(ns);
+			if( null == sheets || bundles.containsKey(ns) )
+				return bundles.get(ns);
+
+			final StringBuilder css = new StringBuilder();
+			for( String sheet : sheets.values() )
+				css.append(sheet);
+
+			try {
+				final Bundle built = new Bundle(ns, css.toString());
+				bundles.put(ns, built);
+
+				log.fine("Bundled stylesheets of " + ns + " as " + built.fileName());
+				return built;
+
+			} catch( IOException e ) {
+				log.throwing(Stylesheets.class.getName(), "bundle", e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * The bundle named by 'fileName' as returned by Bundle.fileName(): the
+	 * current bundle of its namespace, whether or not the hash still matches.
+	 */
+	public static Bundle lookup(String fileName) {
+
+		if( !fileName.endsWith(".css") )
+			return null;
+
+		final String name = fileName.substring(0, fileName.length() - ".css".length());
+		final int dot = name.lastIndexOf('.');
+		if( dot <= 0 )
+			return null;
+
+		return bundle(name.substring(0, dot));
+	}
+
+	static String hash(byte[] content) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+
+			// Half the digest is plenty to tell versions apart
+			final StringBuilder hex = new StringBuilder();
+			for( int i=0; i<digest.length/2; i++ )
+				hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+				   .append(Character.forDigit(digest[i] & 0xf, 16));
+			return hex.toString();
+
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Strip comments and the whitespace that doesn't matter; quoted strings
+	 * are left alone.
+	 */
+	static String minify(String css) {
+
+		final StringBuilder out = new StringBuilder(css.length());
+		final int n = css.length();
+		boolean space = false;
+
+		for( int i=0; i<n; i++ ) {
+			final char c = css.charAt(i);
+
+			if( c == '/' && i+1 < n && css.charAt(i+1) == '*' ) {
+				final int end = css.indexOf("*/", i+2);
+				i = (end < 0) ? n : end+1;
+				space = true;
+
+			} else if( c == '"' || c == '\'' ) {
+				if( space && needsSpace(out) )
+					out.append(' ');
+				space = false;
+
+				int end = i+1;
+				while( end < n && css.charAt(end) != c )
+					end += (css.charAt(end) == '\\') ? 2 : 1;
+				end = Math.min(end, n-1);
+				out.append(css, i, end+1);
+				i = end;
+
+			} else if( Character.isWhitespace(c) ) {
+				space = true;
+
+			} else {
+				// 'a :hover' isn't 'a:hover', so keep the space before a ':'
+				if( space && needsSpace(out) && "{};,>".indexOf(c) < 0 )
+					out.append(' ');
+				space = false;
+
+				// The last declaration of a block needs no ';'
+				if( c == '}' && out.length() > 0 && out.charAt(out.length()-1) == ';' )
+					out.setLength(out.length()-1);
+				out.append(c);
+			}
+		}
+
+		return out.toString();
+	}
+
+	private static boolean needsSpace(StringBuilder out) {
+		return out.length() > 0 && "{};:,>".indexOf(out.charAt(out.length()-1)) < 0;
+	}
+}
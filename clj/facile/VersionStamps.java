@@ -0,0 +1,90 @@
+package clj.facile;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clojure.lang.IDeref;
+import clojure.lang.IRef;
+import clojure.lang.Var;
+
+/**
+ * Version stamps for the Vars views bind to, used to validate conditional
+ * GETs. Each change to a watched Var (or the Ref it holds) stamps the Var
+ * with the next value of a process-wide clock, so the newest stamp among a
+ * view's bindings changes whenever any of them does.
+ *
+ * Only stateless views are validated: a page that carries view state or a
+ * render-diff token refers to server-side state of that rendering, which a
+ * copy revalidated later may no longer find.
+ */
+public class VersionStamps implements ViewDependencies.Listener {
+
+	// Distinguishes stamps handed out by this JVM from those of the last one
+	private static final long epoch = System.currentTimeMillis();
+	private static final AtomicLong clock = new AtomicLong();
+	private static final Map<Var,Long> stamps = new ConcurrentHashMap<Var,Long>();
+	// Whether each view's last full rendering wrote view state or a token
+	private static final Map<String,Boolean> stateful = new ConcurrentHashMap<String,Boolean>();
+	private static final AtomicBoolean installed = new AtomicBoolean();
+
+	/**
+	 * Start stamping changes; idempotent.
+	 */
+	public static void install() {
+		if( installed.compareAndSet(false, true) )
+			ViewDependencies.addListener(new VersionStamps());
+	}
+
+	public void changed(Var var) {
+		stamps.put(var, clock.incrementAndGet());
+	}
+
+	/**
+	 * Note whether the page 'viewId' was just rendered to carries per-request
+	 * state.
+	 */
+	public static void rendered(String viewId, boolean hasState) {
+		stateful.put(viewId, Boolean.valueOf(hasState));
+	}
+
+	/**
+	 * An ETag for the output of 'viewId' as built from source stamped
+	 * 'sourceStamp' for clients accepting 'languages', or null if the view's
+	 * output may depend on something we don't track: it hasn't been rendered
+	 * yet, carries view state or binds to session data.
+	 */
+	public static String validator(String viewId, long sourceStamp, String languages) {
+
+		if( !Boolean.FALSE.equals(stateful.get(viewId)) )
+			return null;
+
+		final Map<Var,Set<String>> deps = ViewDependencies.dependencies(viewId);
+		if( null == deps )
+			return null;
+
+		long version = 0;
+		for( Var var : deps.keySet() ) {
+
+			// Session bindings and the like deref to something different for
+			// each user
+			final Object root = var.getRoot();
+			if( (root instanceof IDeref) && !(root instanceof IRef) )
+				return null;
+
+			final Long stamp = stamps.get(var);
+			if( null != stamp && stamp.longValue() > version )
+				version = stamp.longValue();
+		}
+
+		// The view's locale comes from the client's languages
+		final int language = (null == languages) ? 0 : languages.hashCode();
+
+		return "\"" + Long.toHexString(epoch)
+			+ "-" + Long.toHexString(sourceStamp)
+			+ "-" + Long.toHexString(version)
+			+ "-" + Integer.toHexString(language) + "\"";
+	}
+}
@@ -0,0 +1,158 @@
+package clj.facile;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import clojure.lang.AFn;
+import clojure.lang.IRef;
+import clojure.lang.Var;
+
+/**
+ * Records which Vars each view binds to, and the client ids of the components
+ * bound to them. Every recorded Var (and the Ref, Atom or Agent it holds) is
+ * watched with add-watch so that listeners hear about changes as they are
+ * committed.
+ */
+public class ViewDependencies {
+
+	static final Logger log = Logger.getLogger(ViewDependencies.class.getName());
+
+	public interface Listener {
+		void changed(Var var);
+	}
+
+	// view id -> (var -> client ids)
+	private static final Map<String,Map<Var,Set<String>>> views = new ConcurrentHashMap<String,Map<Var,Set<String>>>();
+	private static final ConcurrentHashMap<Var,Watcher> watched = new ConcurrentHashMap<Var,Watcher>();
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private static class Watcher extends AFn {
+
+		final Var var;
+		final String key;
+
+		Watcher(Var var) {
+			this.var = var;
+			this.key = ViewDependencies.class.getName() + ":" + var.ns.getName() + "/" + var.sym.getName();
+		}
+
+		void watch(Object ref) {
+			if( ref instanceof IRef )
+				((IRef)ref).addWatch(key, this);
+		}
+
+		@Override
+		public Object invoke(Object key, Object ref, Object oldVal, Object newVal) throws Exception {
+
+			// The Var was rebound (e.g. its namespace was reloaded), so start
+			// watching whatever it holds now
+			if( ref == var )
+				watch(newVal);
+
+			if( oldVal != newVal )
+				fireChanged(var);
+
+			return null;
+		}
+	}
+
+	private static void watch(Var var) {
+		if( watched.containsKey(var) )
+			return;
+
+		final Watcher watcher = new Watcher(var);
+		if( null != watched.putIfAbsent(var, watcher) )
+			return;
+
+		log.finest("Watching " + var);
+		watcher.watch(var);
+		watcher.watch(var.getRoot());
+	}
+
+	private static void fireChanged(Var var) {
+		for( Listener listener : listeners ) {
+			try {
+				listener.changed(var);
+			} catch( RuntimeException e ) {
+				log.throwing(ViewDependencies.class.getName(), "fireChanged", e);
+			}
+		}
+	}
+
+	/**
+	 * Replace the recorded bindings of 'viewId'; called each time the view is
+	 * built.
+	 */
+	public static void update(String viewId, Map<Var,? extends Collection<String>> bindings) {
+
+		log.entering(ViewDependencies.class.getName(), "update", new Object[] { viewId, bindings });
+
+		final Map<Var,Set<String>> deps = new HashMap<Var,Set<String>>();
+		for( Map.Entry<Var,? extends Collection<String>> e : bindings.entrySet() ) {
+			deps.put(e.getKey(), Collections.unmodifiableSet(new HashSet<String>(e.getValue())));
+			watch(e.getKey());
+		}
+		views.put(viewId, Collections.unmodifiableMap(deps));
+
+		log.exiting(ViewDependencies.class.getName(), "update");
+	}
+
+	/**
+	 * Add to the recorded bindings of 'viewId'; called when part of the view
+	 * is built after the rest.
+	 */
+	public static void add(String viewId, Map<Var,? extends Collection<String>> bindings) {
+
+		final Map<Var,Set<String>> deps = new HashMap<Var,Set<String>>();
+		final Map<Var,Set<String>> old = views.get(viewId);
+		if( null != old )
+			deps.putAll(old);
+
+		for( Map.Entry<Var,? extends Collection<String>> e : bindings.entrySet() ) {
+			final Set<String> ids = new HashSet<String>(e.getValue());
+			if( deps.containsKey(e.getKey()) )
+				ids.addAll(deps.get(e.getKey()));
+			deps.put(e.getKey(), Collections.unmodifiableSet(ids));
+			watch(e.getKey());
+		}
+		views.put(viewId, Collections.unmodifiableMap(deps));
+	}
+
+	/**
+	 * The Vars bound by 'viewId' mapped to the client ids of the components
+	 * bound to them, or null if the view has not been built yet.
+	 */
+	public static Map<Var,Set<String>> dependencies(String viewId) {
+		return views.get(viewId);
+	}
+
+	/**
+	 * The client ids bound to 'var', by view id.
+	 */
+	public static Map<String,Set<String>> affected(Var var) {
+
+		final Map<String,Set<String>> affected = new HashMap<String,Set<String>>();
+		for( Map.Entry<String,Map<Var,Set<String>>> e : views.entrySet() ) {
+			final Set<String> ids = e.getValue().get(var);
+			if( null != ids )
+				affected.put(e.getKey(), ids);
+		}
+		return affected;
+	}
+
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+}
@@ -3,15 +3,34 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; Cascading style sheets
 
+(defn- decl-name
+  [k]
+  (if (keyword? k) (name k) (str k)))
+
 (defmacro rule
   [selector & decls]
-  
+
   (str selector " { "
-       (reduce (fn [s [k v]] (str s k ": " v "; ")) "" (partition 2 decls))
+       (reduce (fn [s [k v]] (str s (decl-name k) ": " v "; ")) "" (partition 2 decls))
        "}"))
 
+(defmacro defstyles
+  "Defines name as the stylesheet made of rules, and adds it to the bundle
+  of stylesheets served for the current namespace (see
+  clj.facile.StylesheetServlet). The value of name is the minified
+  stylesheet."
+  [name & rules]
+
+  `(def ~name
+	(clj.facile.Stylesheets/define ~(str *ns*) ~(str name)
+				       (str ~@(interpose "\n" rules)))))
+
 (comment
   (rule h2
 	:color "#666",
 	:font-weight bold)
-  )
\ No newline at end of file
+
+  (defstyles headings
+    (rule h1 :font-size "2em")
+    (rule h2 :color "#666"))
+  )
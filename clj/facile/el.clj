@@ -216,10 +216,19 @@
 (def $ el)
 
 ;; Bindings ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
-(defn- bind-view-local [val & dotargs]
+(defn- view-local-key
+  "The key of the view-local value for attribute 'attr' of the widget being
+   built: its template path and 'attr', so that building the view again 
+   reuses the key."
+  [attr]
 
-  (let [key (str (gensym)),
-	[view-ns view-sym] (.split *view-id* "/"),
+  (if-let [path (and *build-path* @*build-path*)]
+    (str path "." attr)
+    (str (gensym))))
+
+(defn- bind-view-local [key val & dotargs]
+
+  (let [[view-ns view-sym] (.split *view-id* "/"),
 	view-var (RT/var view-ns view-sym)]
     
     ;; First, store it in the locals map for this view
@@ -231,7 +240,7 @@
     
 (defn method-binding 
   "Create a method-binding that targets the given function accepting 'parms'
-   as arguments and returning a value of type 'ret'".
+   as arguments and returning a value of type 'ret'."
    [inline-el parms]
    
    (let [el (str "#{" (second inline-el) "}")]
@@ -260,7 +269,7 @@
    #^String attr
    #^IPersistentCollection val]
 
-  (.setValueBinding widget attr (el (bind-view-local val))))
+  (.setValueBinding widget attr (el (bind-view-local (view-local-key attr) val))))
 
 ;; We choose the collection over AFn in case of conflict
 (prefer-method clj.facile/set-widget-attribute IPersistentCollection AFn)
@@ -276,7 +285,9 @@
 	(.put attr (method-binding (bind val (dot 'invoke)) nil)))
 
     ;; Else bind a reference to the variable
-    (.setValueBinding widget attr (el (bind val)))))
+    (do
+      (.setValueBinding widget attr (el (bind val)))
+      (record-binding widget val))))
 
 (defmethod clj.facile/set-widget-attribute ValueBinding 
   [#^UIComponentBase widget 
@@ -291,5 +302,5 @@
    #^AFn bind-fn]
   
   (-> (.getAttributes widget) 
-      (.put attr (method-binding (bind-view-local bind-fn 'invoke)
+      (.put attr (method-binding (bind-view-local (view-local-key attr) bind-fn 'invoke)
 				 (make-array java.lang.Class 0)))))
@@ -1,28 +1,151 @@
-(ns clj.facile.html)
+(ns clj.facile.html
+  (:import (java.io Writer StringWriter)
+	   (clj.facile Compression Precompressed)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; Escaping
+
+(defn- write-escaped
+  "Writes s to w, escaping &, < and >; and \" as well when 'attr?'"
+  [#^Writer w #^String s attr?]
+  (let [n (.length s)]
+    (loop [start 0, i 0]
+      (if (< i n)
+	(let [c (.charAt s i),
+	      entity (cond
+		      (= c \&) "&amp;"
+		      (= c \<) "&lt;"
+		      (= c \>) "&gt;"
+		      (and attr? (= c \")) "&quot;")]
+	  (if entity
+	    (do
+	      (.write w s (int start) (int (- i start)))
+	      (.write w #^String entity)
+	      (recur (inc i) (inc i)))
+	    (recur start (inc i))))
+	(.write w s (int start) (int (- n start)))))))
+
+(defstruct raw-markup ::raw)
+
+(defn raw
+  "Marks s as markup, to be emitted as is instead of escaped"
+  [s]
+  (struct raw-markup (str s)))
+
+(defn- raw?
+  [x]
+  (and (map? x) (contains? x ::raw)))
+
+(defn precompressed
+  "Marks s as markup that never changes; when written with emit-response to
+  a compressed response it is spliced in compressed once and for all"
+  [s]
+  (Precompressed/of (str s)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; HTML templating
 
-(defn- html-element
-  [elm]  
-  (let [tag (.substring (str (first elm)) 1),
+(declare emit-node)
+
+(defn- emit-element
+  [#^Writer w elm]
+  (let [#^String tag (name (first elm)),
 	attrs (if (map? (second elm)) (second elm)),
-	content (if attrs (rrest elm) (rest elm)),
-	open-tag (str "<" tag (reduce (fn [s [attr val]] (str s " " (.substring (str attr) 1) "=\"" val "\"")) "" attrs) ">"),
-	body (reduce (fn [s child]
-		       (if (vector? child)
-			 (str s (html-element child))
-			 (if (keyword? child)
-			   (str s "<" (.substring (str child) 1) "/>")
-			   ;; Else a string
-			   (str s child))))
-		     "" content),
-	close-tag (str "</" tag ">")]
-    (str open-tag body close-tag)))
+	content (drop (if attrs 2 1) elm)]
+    (.write w "<")
+    (.write w tag)
+    (doseq [[attr val] attrs]
+      (.write w " ")
+      (.write w #^String (name attr))
+      (.write w "=\"")
+      (write-escaped w (str val) true)
+      (.write w "\""))
+    (.write w ">")
+    (doseq [child content]
+      (emit-node w child))
+    (.write w "</")
+    (.write w tag)
+    (.write w ">")))
+
+(defn- emit-node
+  [#^Writer w node]
+  (cond
+   (vector? node) (emit-element w node)
+   (keyword? node) (do
+		     (.write w "<")
+		     (.write w #^String (name node))
+		     (.write w "/>"))
+   (raw? node) (.write w #^String (::raw node))
+   (instance? Precompressed node) (.write w (.getMarkup #^Precompressed node))
+   (nil? node) nil
+   ;; e.g. the result of a for
+   (seq? node) (doseq [child node]
+		 (emit-node w child))
+   ;; Else text
+   :else (write-escaped w (str node) false)))
+
+(defn emit
+  "Writes the HTML for the tree of elements/attributes passed in to w,
+  escaping text and attribute values; returns w"
+  [#^Writer w & body]
+  (doseq [elm body]
+    (emit-node w elm))
+  w)
+
+(defn emit-response
+  "Writes the HTML for the tree of elements/attributes passed in to the
+  ResponseWriter of the current JSF request"
+  [& body]
+  (let [ctx (javax.faces.context.FacesContext/getCurrentInstance),
+	w (.getResponseWriter ctx)]
+    (doseq [elm body]
+      (if (instance? Precompressed elm)
+	(Compression/write ctx elm)
+	(emit-node w elm)))
+    w))
 
 (defn html
   "Emits a string of HTML from the tree of elements/attributes passed in"
   [& body]
-  
-  (reduce (fn [s elm] (str s (html-element elm))) "" body))
+  (str (apply emit (StringWriter.) body)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; Compile-time templating
+
+(defn- literal?
+  "True if form evaluates to itself"
+  [form]
+  (cond
+   (vector? form) (every? literal? form)
+   (map? form) (and (every? literal? (keys form))
+		    (every? literal? (vals form)))
+   :else (or (nil? form)
+	     (string? form)
+	     (keyword? form)
+	     (number? form)
+	     (instance? Character form)
+	     (instance? Boolean form))))
 
+(defn- precompile
+  "Replaces the literal elements of tree with their markup"
+  [tree]
+  (cond
+   (and (vector? tree) (literal? tree)) `(raw ~(html tree))
+   (vector? tree) (vec (cons (first tree) (map precompile (rest tree))))
+   :else tree))
+
+(defmacro static-html
+  "Like html, but literal element trees are rendered once, at compile time.
+  If the whole body is literal it expands to a constant string."
+  [& body]
+  (if (every? literal? body)
+    (apply html body)
+    `(html ~@(map precompile body))))
+
+(defmacro static-fragment
+  "Like static-html, but the body must be literal, and the markup is
+  precompressed, for emit-response to splice into compressed responses"
+  [& body]
+  (when-not (every? literal? body)
+    (throw (IllegalArgumentException. "static-fragment: body must be literal")))
+  `(precompressed ~(apply html body)))
@@ -1,5 +1,6 @@
 (ns clj.facile.ide
-  (:use clj.facile)
+  (:use clj.facile
+	clj.facile.widget)
   (:import (clj.facile.repl History ReplServer)))
 
 (defstruct repl-state
@@ -7,23 +8,10 @@
   :server)
 
 ;; REPL component
-(gen-and-save-class 
- (. *servletContext* (getRealPath "/WEB-INF/classes/"))
- 'clj.facile.ide.Repl
-	 
- :extends javax.faces.component.UIComponentBase
- :methods [['getHistory [] History]
-	   ['getServer [] ReplServer] 
-	   ['setHistory [History] (. Void TYPE)]
-	   ['setServer [ReplServer] (. Void TYPE)]]
- 
- :init 'init
- :state 'attribs)
-
 (defcomponent
-  'clj.facile.ide.Repl
-  :attribs {'history History,
-	    'server ReplServer})
+  clj.facile.ide.Repl
+  :attribs {:history History,
+	    :server ReplServer})
 
 (defn Repl-getFamily [this]
   "clj.facile.ide.Repl")
@@ -0,0 +1,95 @@
+package clj.facile.repl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+
+/**
+ * Collects at most 'capacity' characters. Past that the output is cut off
+ * with a marker, and the rest is either dropped or, if 'abort' is set,
+ * refused with an OutputLimitException so that whoever is printing stops.
+ *
+ * Whatever is kept can also be copied to an 'echo' writer as it arrives,
+ * e.g. to stream it to a client while the evaluation is still running.
+ *
+ * Writing is also a cancellation point: an interrupted writer throws
+ * InterruptedIOException, which stops printing loops that would never look
+ * at the interrupt flag themselves.
+ */
+public class BoundedWriter extends Writer {
+
+	public static final String TRUNCATED = "\n... [output truncated]";
+
+	public static class OutputLimitException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public OutputLimitException(int capacity) {
+			super("Output exceeded " + capacity + " characters");
+		}
+	}
+
+	private final StringBuilder buffer = new StringBuilder();
+	private final int capacity;
+	private final boolean abort;
+	private final Writer echo;
+	private boolean truncated;
+
+	public BoundedWriter(int capacity, boolean abort) {
+		this(capacity, abort, null);
+	}
+
+	public BoundedWriter(int capacity, boolean abort, Writer echo) {
+		this.capacity = capacity;
+		this.abort = abort;
+		this.echo = echo;
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	@Override
+	public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+
+		if( Thread.currentThread().isInterrupted() )
+			throw new InterruptedIOException("Evaluation was cancelled");
+
+		if( truncated ) {
+			if( abort )
+				throw new OutputLimitException(capacity);
+			return;
+		}
+
+		final int room = capacity - buffer.length();
+		final int n = Math.min(room, len);
+		buffer.append(cbuf, off, n);
+		if( null != echo )
+			echo.write(cbuf, off, n);
+
+		if( n < len ) {
+			truncated = true;
+			buffer.append(TRUNCATED);
+			if( null != echo )
+				echo.write(TRUNCATED);
+
+			if( abort )
+				throw new OutputLimitException(capacity);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if( null != echo )
+			echo.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return buffer.toString();
+	}
+}
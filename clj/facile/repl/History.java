@@ -1,97 +1,260 @@
 package clj.facile.repl;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 
-public class History implements Iterable<History.Item> {
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
-	public class Item {
+import clojure.lang.Namespace;
+import clojure.lang.Symbol;
+
+/**
+ * REPL history. Every entry gets a sequence number that never changes. The
+ * most recent entries are kept in a fixed-size ring, bounded both by count
+ * and by an estimate of their size in bytes; older entries are appended to
+ * an archive file and read back on demand.
+ */
+public class History implements Iterable<History.Item>, HttpSessionBindingListener {
+
+	public static final int DEFAULT_CAPACITY = 100;
+	public static final long DEFAULT_BYTES = 1024 * 1024;
+
+	public static class Item {
+		public int seq;
 		public Calendar when;
 		public ReplServer.Evaluation eval;
-		
+
+		/**
+		 * An item for 'eval' without its value: only the printed value is
+		 * shown, and the value itself could be any size, as bytes() doesn't
+		 * count it.
+		 */
 		public Item(final ReplServer.Evaluation eval, final Calendar when) {
-			this.eval = eval;
+			this.eval = (null == eval.value) ? eval
+				: new ReplServer.Evaluation(eval.ns, eval.form, null, eval.valueString, eval.stdout, eval.stderr);
 			this.when = when;
 		}
-	}
-	
-	private List<SoftReference<Item>> history;
-	private ReferenceQueue<Item> collectedItems;
-	
-	public History() {
-		this.history = new ArrayList<SoftReference<Item>>();
-		this.collectedItems = new ReferenceQueue<Item>();
-	}
-
-	private void cleanupRefs() {
-		
-		int count = 0;
-		
-		// Remove anything lingering in the reference queue
-		Reference<? extends Item> collectedRef = this.collectedItems.poll();
-		while( null != collectedRef ) {
-			this.history.remove(collectedRef);
-			collectedRef = this.collectedItems.poll();
-			count++;
+
+		long bytes() {
+			return 64 + 2 * ((long)length(eval.form)
+					+ length(eval.valueString)
+					+ length(eval.stdout)
+					+ length(eval.stderr));
 		}
-		if( count > 0 ) {
-			System.out.println(getClass().getName() + ": Removed " + count + " refs.");
-			System.out.println(getClass().getName() + ": " + this.history.size() + " items remaining");
+
+		private static int length(String s) {
+			return (null != s) ? s.length() : 0;
 		}
 	}
-	
-	public int size() {
-		cleanupRefs();
-		
-		return this.history.size();
+
+	private final Item[] ring;
+	private int oldest;
+	private int count;
+	private int nextSeq;
+	private long bytes;
+	private final long byteBudget;
+
+	// Evicted items; archived[seq] is the item's offset in the file
+	private final File directory;
+	private File archiveFile;
+	private RandomAccessFile archive;
+	private long[] archived = new long[64];
+	private int archivedCount;
+
+	public History() {
+		this(DEFAULT_CAPACITY, DEFAULT_BYTES, null);
+	}
+
+	/**
+	 * Keep at most 'capacity' items, and about 'byteBudget' bytes worth of
+	 * them, in memory; archive the rest in a file in 'directory' (the system
+	 * temporary directory if null).
+	 */
+	public History(int capacity, long byteBudget, File directory) {
+		this.ring = new Item[Math.max(capacity, 1)];
+		this.byteBudget = byteBudget;
+		this.directory = directory;
+	}
+
+	/**
+	 * The number of items ever recorded; also the sequence number the next
+	 * item will get.
+	 */
+	public synchronized int size() {
+		return this.nextSeq;
 	}
-	
+
 	public int enqueue(ReplServer.Evaluation eval) {
 		return this.enqueue(new Item(eval, Calendar.getInstance()));
 	}
-	
-	public int enqueue(Item item) {
-		this.history.add( new SoftReference<Item>(item,this.collectedItems) );
-		return this.history.size();
+
+	public synchronized int enqueue(Item item) {
+
+		item.seq = this.nextSeq++;
+
+		// Make room
+		while( count > 0 && (count == ring.length || bytes + item.bytes() > byteBudget) )
+			evict();
+
+		ring[(oldest + count) % ring.length] = item;
+		count++;
+		bytes += item.bytes();
+
+		return size();
 	}
-	
-	public Item get(int i) {
-		
-		if( i < 0 || i >= this.history.size() )
+
+	public synchronized Item get(int seq) {
+
+		if( seq < 0 || seq >= this.nextSeq )
 			return null;
-		
-		final SoftReference<Item> ref = this.history.get(i);
-		final Item item = ref.get();
-		
-		// Reference has been garbage collected?
-		if( null == item ) {
-			
-			this.cleanupRefs();
-			// Item is unavailable
+
+		// In memory?
+		final int first = this.nextSeq - this.count;
+		if( seq >= first )
+			return ring[(oldest + (seq - first)) % ring.length];
+
+		// Page it in from the archive
+		try {
+			return readArchived(seq);
+		} catch( IOException e ) {
+			System.out.println(getClass().getName() + ": Couldn't read item " + seq + " from " + archiveFile + ": " + e);
 			return null;
 		}
-		
-		return item;
 	}
 
-	public List<Item> list() {
-		
-		// Clean up collected references.
-		cleanupRefs();
-		
-		final ArrayList<Item> list = new ArrayList<Item>(this.history.size());
-		for( Reference<Item> r : this.history ) {
-			list.add( r.get() );
-		}
+	/**
+	 * The items held in memory, oldest first.
+	 */
+	public synchronized List<Item> list() {
+
+		final ArrayList<Item> list = new ArrayList<Item>(this.count);
+		for( int i=0; i<this.count; i++ )
+			list.add( ring[(oldest + i) % ring.length] );
+
 		return list;
 	}
-	
+
 	public Iterator<Item> iterator() {
 		return list().iterator();
 	}
+
+	/**
+	 * Throw away the archive.
+	 */
+	public synchronized void close() {
+		try {
+			if( null != archive )
+				archive.close();
+		} catch( IOException e ) {
+			// Nothing to do
+		}
+		if( null != archiveFile )
+			archiveFile.delete();
+
+		archive = null;
+		archiveFile = null;
+	}
+
+	// Archive ///////////////////////////////////////////////////////////////
+
+	private void evict() {
+
+		final Item item = ring[oldest];
+		ring[oldest] = null;
+		oldest = (oldest + 1) % ring.length;
+		count--;
+		bytes -= item.bytes();
+
+		long offset = -1;
+		try {
+			offset = archive(item);
+		} catch( IOException e ) {
+			System.out.println(getClass().getName() + ": Couldn't archive item " + item.seq + ": " + e);
+		}
+
+		// Items are evicted in order, so the index is just an array; a lost
+		// item keeps its slot
+		if( archivedCount == archived.length ) {
+			final long[] grown = new long[archived.length * 2];
+			System.arraycopy(archived, 0, grown, 0, archivedCount);
+			archived = grown;
+		}
+		archived[archivedCount++] = offset;
+	}
+
+	private RandomAccessFile archive() throws IOException {
+		if( null == archive ) {
+			// Deleted by close(), as the session lets go of the history;
+			// deleteOnExit() would keep an entry for every history ever made
+			archiveFile = File.createTempFile("repl-history", ".log", directory);
+			archive = new RandomAccessFile(archiveFile, "rw");
+		}
+		return archive;
+	}
+
+	private static void writeString(RandomAccessFile out, String s) throws IOException {
+		final byte[] bytes = (null != s) ? s.getBytes("UTF-8") : new byte[0];
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(RandomAccessFile in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private long archive(Item item) throws IOException {
+
+		final RandomAccessFile out = archive();
+		final long offset = out.length();
+		out.seek(offset);
+
+		out.writeLong(item.when.getTimeInMillis());
+		writeString(out, (null != item.eval.ns) ? item.eval.ns.getName().toString() : null);
+		writeString(out, item.eval.form);
+		writeString(out, item.eval.valueString);
+		writeString(out, item.eval.stdout);
+		writeString(out, item.eval.stderr);
+
+		return offset;
+	}
+
+	private Item readArchived(int seq) throws IOException {
+
+		if( null == archive || seq >= archivedCount || archived[seq] < 0 )
+			return null;
+
+		final RandomAccessFile in = archive;
+		in.seek(archived[seq]);
+
+		final Calendar when = Calendar.getInstance();
+		when.setTimeInMillis(in.readLong());
+		final String ns = readString(in);
+		final String form = readString(in);
+		final String valueString = readString(in);
+		final String stdout = readString(in);
+		final String stderr = readString(in);
+
+		final Item item = new Item(new ReplServer.Evaluation(
+				(ns.length() > 0) ? Namespace.find(Symbol.intern(ns)) : null,
+				form, null, valueString, stdout, stderr), when);
+		item.seq = seq;
+		return item;
+	}
+
+	// Session lifecycle /////////////////////////////////////////////////////
+
+	public void valueBound(HttpSessionBindingEvent ev) {
+	}
+
+	public void valueUnbound(HttpSessionBindingEvent ev) {
+		close();
+	}
 }
@@ -3,9 +3,19 @@ package clj.facile.repl;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.List;
-import java.util.concurrent.SynchronousQueue;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
 import clojure.lang.IPersistentMap;
 import clojure.lang.LineNumberingPushbackReader;
@@ -15,33 +25,60 @@ import clojure.lang.RT;
 import clojure.lang.Symbol;
 import clojure.lang.Var;
 
-public class ReplServer extends Thread {
-	
+/**
+ * A REPL session. The session's state (its namespace and the REPL vars it has
+ * set!) is held here as data; forms are evaluated on a shared executor with
+ * that state bound for the duration of the evaluation, so an idle session
+ * costs no thread. A session evaluates one form at a time; forms submitted
+ * while one runs are refused rather than queued behind it.
+ */
+public class ReplServer implements HttpSessionBindingListener {
+
 	static final Var clojure_out = RT.var("clojure.core", "*out*");
 	static final Var currentNs = RT.var("clojure.core", "*ns*");
 	static final Var warnOnReflection = RT.var("clojure.core", "*warn-on-reflection*");
 	static final Var inNs = RT.var("clojure.core", "in-ns");
     static final Var refer = RT.var("clojure.core", "refer");
+	static final Var printLength = RT.var("clojure.core", "*print-length*");
+	static final Var printLevel = RT.var("clojure.core", "*print-level*");
+
+	/**
+	 * What a single evaluation is allowed to consume.
+	 */
+	public static class Limits {
+
+		// Milliseconds before the evaluation is cancelled
+		public long timeout = 30000;
+		// Characters of stdout and of the printed value kept
+		public int maxOutput = 64 * 1024;
+		// *print-length* and *print-level* for printing the value
+		public Object printLength = Integer.valueOf(100);
+		public Object printLevel = Integer.valueOf(10);
+	}
+
+	private final String id;
+	private final String defaultNamespace;
+	private final IPersistentMap bindings;
+	private final ExecutorService executor;
+	private final Collection<ReplServer> registry;
+	private final Limits limits;
+
+	// Session state; only written by evaluations, which hold 'busy'
+	private volatile Namespace ns;
+	private volatile Object warn;
+	private volatile boolean active;
+	private final AtomicBoolean busy = new AtomicBoolean();
 
-	private SynchronousQueue<String> in;
-	private SynchronousQueue<Evaluation> out;
-	
-	private int timeout;
-	private String defaultNamespace;
-	private IPersistentMap bindings;
-	
-	private List<ReplServer> registry;
-	
 	public static class Evaluation {
-		
+
 		public String form;
 		public Object value;
 		public String valueString;
 		public Namespace ns;
-		
+
 		public String stdout;
 		public String stderr;
-		
+
 		public Evaluation(Namespace ns, String form, Object value, String valueString, String stdout, String stderr) {
 			this.ns = ns;
 			this.form = form;
@@ -51,74 +88,48 @@ public class ReplServer extends Thread {
 			this.stderr = stderr;
 		}
 	}
-	
-	public ReplServer(String id, int timeout, String defaultNamespace, List<ReplServer> registry) {
-		this(id,timeout,defaultNamespace,registry,null);
+
+	public ReplServer(String id, String defaultNamespace, ExecutorService executor, Collection<ReplServer> registry) {
+		this(id,defaultNamespace,executor,registry,null);
+	}
+
+	public ReplServer(String id, String defaultNamespace, ExecutorService executor, Collection<ReplServer> registry, IPersistentMap bindings) {
+		this(id,defaultNamespace,executor,registry,bindings,new Limits());
 	}
-	
-	public ReplServer(String id, int timeout, String defaultNamespace, List<ReplServer> registry, IPersistentMap bindings) {
-		super("ReplServer_" + id);
-		
-		this.timeout = timeout;
+
+	public ReplServer(String id, String defaultNamespace, ExecutorService executor, Collection<ReplServer> registry, IPersistentMap bindings, Limits limits) {
+
+		this.id = id;
+		this.limits = limits;
 		this.defaultNamespace = defaultNamespace;
+		this.executor = executor;
 		this.bindings = bindings;
-		
+
 		this.registry = registry;
-		
-		// Setup i/o queue
-		this.in = new SynchronousQueue<String>();
-		this.out = new SynchronousQueue<Evaluation>();
-	}
-	
-	public Evaluation eval(String form) {
-		try {
-			
-    		// Queue it up
-    		in.put(form);
-    		return out.take();
-    		
-		} catch( InterruptedException e ) {
-			return null;
-		}
-	}
-	
-	public boolean isActive() {
-		return State.TERMINATED != this.getState();
-	}
-	
-	public Namespace currentNamespace() {
-		
-		// If we are not running, then we can't get the namespace
-		if( !isActive() )
-			return null;
-		
-		try {
-			
-			in.put("'ping");
-			return out.take().ns;
-			
-		} catch( InterruptedException e ) {
-			return null;
-		}
-	}
-	
-	@Override
-	public void run() {
-	
-		System.out.println(this.getClass().getName() + ": Starting up REPL server thread: " + this.getName());
+		this.active = true;
 
 		// Record ourself in the registry
 		if( null != this.registry )
 			this.registry.add(this);
+	}
+
+	private void pushSessionBindings() {
+		Var.pushThreadBindings(RT.map(
+				currentNs, (null != this.ns) ? this.ns : currentNs.get(),
+				warnOnReflection, (null != this.warn) ? this.warn : warnOnReflection.get()));
+	}
+
+	private void saveSessionBindings() {
+		this.ns = (Namespace)currentNs.get();
+		this.warn = warnOnReflection.get();
+	}
+
+	// First evaluation: move into the REPL namespace and refer 'clojure
+	private void enterNamespace() {
 
-		// Change to the into the 'repl namespace and refer 'clojure
 		Symbol INITIAL_NS = Symbol.intern(this.defaultNamespace);
 		Symbol CLOJURE_CORE = Symbol.intern("clojure.core");
-		Var.pushThreadBindings(RT.map(
-				currentNs, currentNs.get(),
-				warnOnReflection, warnOnReflection.get()));
-	
-		// Move into the REPL namespace
+
 		try {
 			inNs.invoke(INITIAL_NS);
 			refer.invoke(CLOJURE_CORE);
@@ -126,89 +137,182 @@ public class ReplServer extends Thread {
 			// Not fatal, keep going
 			e.printStackTrace();
 		}
-		
-		// Infinite loop
-		while(!Thread.interrupted()) {
-				
-			String input = null;
-				
-			// Wait for input, but only as long as the session timeout is set for
-			try {
-				input = in.poll(this.timeout, TimeUnit.SECONDS);
-				if( null == input ) {
-					System.out.println(getClass().getName() + ": Timed out waiting for input, shutting down this repl");
-					break;
-				}
-					
-			} catch( InterruptedException e ) {
-				// We're done.
-				break;
-			}
-					
+	}
+
+	private Evaluation evaluate(String input, Writer echo) {
+
+		pushSessionBindings();
+		try {
+			if( null == this.ns )
+				enterNamespace();
+
 			try {
 				// Parse the input
 				Object r = LispReader.read(new LineNumberingPushbackReader(new StringReader(input + "  ")),
 								true,		// EOF is error
 								null,		// Value returned if EOF is encountered (ignored since eofIsError=true
 								false);		// isRecursive; not sure what this means, but Repl.java sets it false
-				
-				// Bind *out*
-				final StringWriter stdout = new StringWriter();
+
+				// Bind *out*; past the limit we drop output but keep going
+				final BoundedWriter stdout = new BoundedWriter(limits.maxOutput, false, echo);
 				Var.pushThreadBindings((IPersistentMap)
 						RT.map(clojure_out, stdout)
 							.cons(this.bindings));
 
-				// Evaluate the form
-				Object result = clojure.lang.Compiler.eval(r);
-				
-				// Convert the result to a string / force evalution of lazy forms
-				final StringWriter resultString = new StringWriter();
-				try {
-					RT.print(result, resultString);
-				} catch( Exception e ) {
-					PrintWriter wr = new PrintWriter(resultString);
-					e.printStackTrace(wr);
-					
-					wr.flush();
-					wr.close();
-				}			
-
-				RT.print(result, new StringWriter());
-				
-				Var.popThreadBindings();
-				
-				// Store the result
 				try {
-					out.put( new Evaluation((Namespace)currentNs.get(), input, result, resultString.toString(), stdout.toString(), "") );
-				} catch( InterruptedException e ) {
-						
-					// All done
-					break;
+					// Evaluate the form
+					Object result = clojure.lang.Compiler.eval(r);
+
+					// Convert the result to a string / force evalution of lazy forms.
+					// Past the limit printing stops, so an infinite seq is safe
+					final BoundedWriter resultString = new BoundedWriter(limits.maxOutput, true);
+					Var.pushThreadBindings(RT.map(
+							printLength, limits.printLength,
+							printLevel, limits.printLevel));
+					try {
+						RT.print(result, resultString);
+					} catch( BoundedWriter.OutputLimitException e ) {
+						// Already marked as truncated
+					} catch( Exception e ) {
+						PrintWriter wr = new PrintWriter(resultString);
+						e.printStackTrace(wr);
+
+						wr.flush();
+						wr.close();
+					} finally {
+						Var.popThreadBindings();
+					}
+
+					return new Evaluation((Namespace)currentNs.get(), input, result, resultString.toString(), stdout.toString(), "");
+
+				} finally {
+					Var.popThreadBindings();
 				}
-				
+
 			} catch( Exception e ) {
-				
+
 				// Exceptions are results too
-				try {
-					final StringWriter stderr = new StringWriter();
-					e.printStackTrace(new PrintWriter(stderr));
-					out.put( new Evaluation((Namespace)currentNs.get(), input, null, "nil", "", stderr.toString() ) );
-				} catch( InterruptedException ee ) {
-					
-					// Done
-					break;
-				}
+				final StringWriter stderr = new StringWriter();
+				e.printStackTrace(new PrintWriter(stderr));
+				return new Evaluation((Namespace)currentNs.get(), input, null, "nil", "", stderr.toString() );
 			}
+
+		} finally {
+			saveSessionBindings();
+			Var.popThreadBindings();
+		}
+	}
+
+	public Evaluation eval(final String form) {
+		return eval(form, null);
+	}
+
+	/**
+	 * What a form that wasn't evaluated gives, with 'message' on stderr
+	 */
+	private Evaluation refused(String form, String message) {
+		final Namespace current = (null != this.ns)
+			? this.ns
+			: Namespace.findOrCreate(Symbol.intern(this.defaultNamespace));
+		return new Evaluation(current, form, null, "nil", "", message);
+	}
+
+	/**
+	 * Evaluate 'form', copying its stdout to 'echo' as it is written. 'echo'
+	 * is written to from the evaluating thread.
+	 */
+	public Evaluation eval(final String form, final Writer echo) {
+
+		if( !isActive() )
+			return refused(form, "The REPL is not running\n");
+
+		// Held until the evaluation ends, which may be after we stop waiting
+		if( !busy.compareAndSet(false, true) )
+			return refused(form, "Still evaluating the previous form; try again when it is done\n");
+
+		// Whichever of the evaluation and its cancellation comes first
+		final AtomicBoolean started = new AtomicBoolean();
+
+		final Future<Evaluation> evaluation;
+		try {
+			evaluation = executor.submit(new Callable<Evaluation>() {
+				public Evaluation call() {
+					if( !started.compareAndSet(false, true) )
+						return null;
+					try {
+						return evaluate(form, echo);
+					} finally {
+						busy.set(false);
+					}
+				}
+			});
+		} catch( RejectedExecutionException e ) {
+			busy.set(false);
+			return refused(form, "The REPL is not running\n");
+		}
+
+		try {
+			return evaluation.get(limits.timeout, TimeUnit.MILLISECONDS);
+
+		} catch( TimeoutException e ) {
+			// Interrupt it; output and printing stop at the next write, 
+			// anything else has to notice the interrupt itself
+			cancel(evaluation, started);
+			return refused(form, "Evaluation cancelled after " + limits.timeout + " ms\n");
+		} catch( InterruptedException e ) {
+			cancel(evaluation, started);
+			Thread.currentThread().interrupt();
+			return refused(form, "Evaluation interrupted\n");
+		} catch( ExecutionException e ) {
+			final StringWriter stderr = new StringWriter();
+			e.getCause().printStackTrace(new PrintWriter(stderr));
+			return refused(form, stderr.toString());
+		}
+	}
+
+	private void cancel(Future<Evaluation> evaluation, AtomicBoolean started) {
+		evaluation.cancel(true);
+		// Never started, so it won't free the session itself
+		if( started.compareAndSet(false, true) )
+			busy.set(false);
+	}
+
+	public boolean isActive() {
+		return this.active;
+	}
+
+	public Namespace currentNamespace() {
+
+		// If we are not running, then we can't get the namespace
+		if( !isActive() )
+			return null;
+
+		if( null == this.ns ) {
+			final Evaluation ping = eval("'ping");
+			return (null != ping) ? ping.ns : null;
 		}
 
-		// Pop thread bindings
-		Var.popThreadBindings();
+		return this.ns;
+	}
+
+	public void close() {
+
+		this.active = false;
 
 		// Remove ourself from the registry REPLs
 		if( null != this.registry )
 			this.registry.remove(this);
-		
-		System.out.println(this.getClass().getName() + ": REPL server thread is done: " + this.getName());
+
+		System.out.println(this.getClass().getName() + ": REPL session is done: " + this.id);
 	}
-    
+
+	// Session lifecycle /////////////////////////////////////////////////////
+
+	public void valueBound(HttpSessionBindingEvent ev) {
+	}
+
+	public void valueUnbound(HttpSessionBindingEvent ev) {
+		close();
+	}
+
 }
@@ -1,6 +1,7 @@
 (ns clj.facile.taglib.core
   (:use clj.facile)
-  (import (javax.faces.model SelectItem)))
+  (import (javax.faces.model SelectItem)
+	  (clj.facile Interned)))
 
 ;; Input components ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 (defn input 
@@ -75,31 +76,44 @@
   [items]
   (widget "javax.faces.SelectItems" {:value items}))
 
+(defn- new-list-select-items
+  "The SelectItems for the items of 'l', labelled with their names."
+  [l]
+
+  (into []
+	(map (fn [i]
+	       (if (instance? javax.faces.model.SelectItem i)
+		 i
+		 (let [label (if (instance? clojure.lang.Named 
+					    i) 
+			       (name i) 
+			       i)]
+		   (SelectItem. i label))))
+	     l)))
+
+(defn- new-map-select-items
+  "The SelectItems for the values of 'm', labelled with their keys."
+  [m]
+
+  (into [] 
+	(map (fn [[k v]] 
+	       (SelectItem. v 
+			    (if (instance? clojure.lang.Named k)
+			      (name k) 
+			      k))) 
+	     m)))
+
 (defmulti select-items type)
 (defmethod select-items java.util.List 
   [l] 
   
-  (select-items- (into []
-		       (map (fn [i]
-			      (if (instance? javax.faces.model.SelectItem i)
-				i
-				(let [label (if (instance? clojure.lang.Named 
-							   i) 
-					      (name i) 
-					      i)]
-				  (SelectItem. i label))))
-			    l))))
+  ;; Shared by every view built from the same constant 'l'
+  (select-items- (Interned/value [`new-list-select-items l])))
 
 (defmethod select-items clojure.lang.Associative
   [m]
 
-  (select-items- (into [] 
-		       (map (fn [[k v]] 
-			      (SelectItem. v 
-					   (if (instance? clojure.lang.Named k)
-					     (name k) 
-					     k))) 
-			    m))))
+  (select-items- (Interned/value [`new-map-select-items m])))
 
 (prefer-method select-items java.util.List clojure.lang.Associative)
 
@@ -260,6 +274,10 @@
 		  (parameter id name value)))))
 
 ;; Converters ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; The converters and validators attached by the helpers below are shared
+;; between views when configured with constants; see clj.facile.Interned,
+;; to which they are described by the new-* fn that makes them and its
+;; arguments. The new-* fns return fresh ones, to be configured further.
 (defn new-simple-converter
   [converter-id]
 
@@ -268,7 +286,7 @@
 (defn simple-converter
   [w converter-id]
 
-  (assoc w :converter (new-simple-converter converter-id)))
+  (assoc w :converter (Interned/converter [`new-simple-converter converter-id])))
 
 (defn convert-big-decimal [w]
   (simple-converter w "javax.faces.BigDecimal"))
@@ -300,6 +318,17 @@
 (defn convert-short [w]
   (simple-converter w "javax.faces.Short"))
 
+(defn new-datetime-converter
+  [date-style locale pattern time-style timezone type]
+
+  (doto (.createConverter *faces-app* "javax.faces.DateTime")
+    (.setDateStyle date-style)
+    (.setLocale locale)
+    (.setPattern pattern)
+    (.setTimeStyle time-style)
+    (.setTimeZone timezone)
+    (.setType type)))
+
 (defn convert-datetime
   [w & args]
 
@@ -309,19 +338,37 @@
 	      pattern "yy-MM-dd hh:mm.ss aa",
 	      time-style "default",
 	      timezone (java.util.TimeZone/getDefault),
-	      type "both"}} (apply hash-map args),
-	      converter (.createConverter *faces-app* "javax.faces.DateTime")]
+	      type "both"}} (apply hash-map args)]
     
-    (doto converter
-      (.setDateStyle date-style)
-      (.setLocale locale)
-      (.setPattern pattern)
-      (.setTimeStyle time-style)
-      (.setTimeZone timezone)
-      (.setType type))
+    (assoc w 
+      :converter
+      (Interned/converter 
+       [`new-datetime-converter date-style locale pattern time-style timezone type]))))
+
+(defn new-number-converter
+  [currency-code currency-symbol locale
+   max-fraction-digits max-integer-digits
+   min-fraction-digits min-integer-digits
+   pattern type grouped? only-integer?]
+
+  (let [cnvtr (.createConverter *faces-app* "javax.faces.Number")]
+    (when currency-code (.setCurrencyCode cnvtr currency-code))
+    (when currency-symbol (.setCurrencySymbol cnvtr currency-symbol))
+    (.setLocale cnvtr locale)
+    (when max-fraction-digits 
+      (.setMaxFractionDigits cnvtr max-fraction-digits))
+    (when max-integer-digits 
+      (.setMaxIntegerDigits cnvtr max-integer-digits))
+    (when min-fraction-digits 
+      (.setMinFractionDigits cnvtr min-fraction-digits))
+    (when min-integer-digits 
+      (.setMinIntegerDigits cnvtr min-integer-digits))
+    (when pattern (.setPattern cnvtr pattern))
+    (when type (.setType cnvtr type))
+    (when grouped? (.setGroupingUsed cnvtr true))
+    (when only-integer? (.setIntegerOnly cnvtr true))
+    cnvtr))
 
-    (assoc w :converter converter)))
-	   
 
 (defn convert-number
   [w & args]
@@ -340,26 +387,14 @@
 	      pattern nil,
 	      type "number",
 	      grouped? false,
-	      only-integer? false}} (apply hash-map args),
-	      cnvtr (.createConverter *faces-app* "javax.faces.Number")]
-    
-    (when currency-code (.setCurrencyCode cnvtr currency-code))
-    (when currency-symbol (.setCurrencySymbol cnvtr currency-symbol))
-    (.setLocale cnvtr locale)
-    (when max-fraction-digits 
-      (.setMaxFractionDigits cnvtr max-fraction-digits))
-    (when max-integer-digits 
-      (.setMaxIntegerDigits cnvtr max-integer-digits))
-    (when min-fraction-digits 
-      (.setMinFractionDigits cnvtr min-fraction-digits))
-    (when min-integer-digits 
-      (.setMinIntegerDigits cnvtr min-integer-digits))
-    (when pattern (.setPattern cnvtr pattern))
-    (when type (.setType cnvtr type))
-    (when grouped? (.setGroupingUsed grouped?))
-    (when only-integer? (.setIntegerOnly only-integer?))
+	      only-integer? false}} (apply hash-map args)]
 
-    (assoc w :converter cnvtr)))
+    (assoc w 
+      :converter 
+      (Interned/converter [`new-number-converter currency-code currency-symbol locale
+			   max-fraction-digits max-integer-digits
+			   min-fraction-digits min-integer-digits
+			   pattern type grouped? only-integer?]))))
 
 (defn convert-currency [w currency-code]
   (convert-number w :currency-code currency-code))
@@ -380,7 +415,8 @@
   (let [validators (:validators w)]
     (assoc w
       :validators 
-      (conj validators (new-range-validator validator-id min max)))))
+      (conj validators 
+	    (Interned/validator [`new-range-validator validator-id min max])))))
 
 (defn validate-double-range
   [w min max]
@@ -1,5 +1,5 @@
 (ns clj.facile.widget
-  (:import (javax.faces.component.UIComponentBase)))
+  (:import (javax.faces.component UIComponentBase)))
 
 (defn- gen-accessors
   "Generate a vector of method definitions suitable for use in gen-class
@@ -19,16 +19,31 @@
 		  [`(symbol (str "set"
 				~(.. prop (substring 0 1) (toUpperCase))
 				~(. prop (substring 1))))
-		   [type] (. Void TYPE)])))]
+		   [type] ''void])))]
     (reduce gen-attrib [] attribs)))
   
+(defn define-quietly
+  "Evaluates form, a component definition, without writing its functions
+   out as class files even when *compile-files* is set (as it is while a
+   view is loaded). Used by defcomponent."
+  [form]
+  (binding [*compile-files* false]
+    (eval form)))
+
 (defmacro defcomponent
   "Defines the class for a custom JSF component. In addition, provides
-   default implementations for any named attributes and also defines a 
-   struct-map to contain the state."
+   default implementations for any named attributes, whose values are kept
+   in a clj.facile.ComponentState and saved with the component's state.
+
+   The class is defined in memory (see clj.facile.ComponentClasses); an
+   unchanged definition reuses the class already loaded. Use save-components
+   to write the classes out ahead of time."
   [name & args]
 
-  (let [;; parms to genclass; merge default args to gen-class with those
+  (let [;; allow (defcomponent 'pkg.Name ...) as well
+	name (if (and (seq? name) (= 'quote (first name))) (second name) name),
+
+	;; parms to genclass; merge default args to gen-class with those
 	;; supplied by the caller
 	parms (merge {;; Defaults
 		      :extends UIComponentBase,
@@ -52,64 +67,66 @@
 
 	;; accessors to be passed into gen-class
 	accessors (gen-accessors (:attribs parms)),
-	struct-name (symbol (.toLowerCase (str clazz "-state"))),
 	init-name (symbol (str clazz "-init")),
-	basePath (str (.getRealPath *servletContext* "") "/WEB-INF/classes/"),
-	path (str (.replace qualifiedClazz \. java.io.File/separatorChar)
-		  ".class")]
+
+	;; identifies this version of the definition
+	definition-hash (clj.facile.ComponentClasses/hash (pr-str name args))]
 
     ;; Generate the class
-    `(let [parms# ~parms,
-	   attribs# (:attribs parms#),
-	   file# (new java.io.File ~basePath ~path),
-	   genclass# (gen-class (str '~name)
-				:extends (:extends parms#),
-				:methods (if (:methods parms#),
-					   (conj ~accessors (:methods parms#))
-					   ~accessors),
-				:init 'init,
-				:state 'attribs)]
-
-       ;; Def attributes struct and init func
-       (def ~struct-name
-	    (apply #'create-struct (map #'first attribs#)))
+    `(define-quietly
+      '(let [parms# ~parms]
 
+       ;; Init func: one slot per attribute, in order of (:attribs parms)
        (defn ~init-name []
-	 [[] (apply #'struct-map ~struct-name
-		    ~(reduce (fn [v k] (conj v k '(ref nil)))
-			     [] (map #'first (:attribs parms))))])
+	 [[] (new clj.facile.ComponentState ~(count (:attribs parms))
+		  ~(.hashCode definition-hash))])
+
+       ;; Save and restore the slots along with the superclass's state
+       (defn ~(symbol (str clazz "-saveState")) [this# ctx#]
+	 (let [#^clj.facile.ComponentState state# (. this# attribs)]
+	   (.save state# (. this# (superSaveState ctx#)))))
+
+       (defn ~(symbol (str clazz "-restoreState")) [this# ctx# saved#]
+	 (let [#^clj.facile.ComponentState state# (. this# attribs)]
+	   (. this# (superRestoreState ctx# (.restore state# saved#)))))
+
        ;; Def accessors (getters/setters)
        ~@(reduce 
-	  (fn [defs attrib]
+	  (fn [defs [slot attrib]]
 	    (let [Attrib (str (.toUpperCase (.substring (str attrib) 1 2))
 			      (.substring (str attrib) 2))
 		  getter (symbol (str clazz "-get" Attrib))
 		  setter (symbol (str clazz "-set" Attrib))]
 	      (conj defs
 		    `(defn ~getter [this#]
-		       (let [value# @(~attrib (. this# attribs))
-			     vb# (. this# (getValueBinding ~(str attrib)))
-			     ctx# (. this# (getFacesContext))]
-			 (if (not value#)
-			   (when vb#
-			     (. vb# (getValue ctx#)))
-			   value#)))
+		       (let [#^clj.facile.ComponentState state# (. this# attribs)]
+			 (.value state# this# (int ~slot) ~(.substring (str attrib) 1))))
 		    
 		    `(defn ~setter [this# value#]
-		       (dosync
-			(ref-set (~attrib (. this# attribs)) value#))))))
+		       (let [#^clj.facile.ComponentState state# (. this# attribs)]
+			 (.set state# (int ~slot) value#))))))
 	  '() 
-	  (map #'first (:attribs parms)))
-	  
-       ;; Remove the existing .class if it exists
-       (if (.exists file#)
-	 (.delete file#))
-
-       ;; Ensure path exists
-       (.mkdirs (.getParentFile file#))
-       (.createNewFile file#)
-       
-       ;; Write the class
-       (with-open f# (new java.io.FileOutputStream file#)
-	 (.write f# (:bytecode genclass#))))))
+	  (map vector (iterate inc 0) (map #'first (:attribs parms))))
+
+       ;; Define the class, unless this very definition already is. The
+       ;; gen-class macro only writes class files when compiling, so the
+       ;; bytecode comes from the function behind it.
+       (when-not (clj.facile.ComponentClasses/isDefined ~qualifiedClazz ~definition-hash)
+	 (let [[cname# bytecode#] (#'clojure.core/generate-class
+				   {:name '~name,
+				    :extends (:extends parms#),
+				    :methods (into ~accessors (:methods parms#)),
+				    :init "init",
+				    :state "attribs",
+				    :exposes-methods '~'{saveState superSaveState,
+							 restoreState superRestoreState},
+				    :prefix ~(str clazz "-"),
+				    :impl-ns '~(ns-name *ns*),
+				    :load-impl-ns false})]
+	   (clj.facile.ComponentClasses/define ~qualifiedClazz ~definition-hash bytecode#)))))))
 
+(defn save-components
+  "Writes the classes of every component defined so far as .class files
+   under directory (e.g. WEB-INF/classes), for ahead-of-time deployment."
+  [directory]
+  (clj.facile.ComponentClasses/save (java.io.File. (str directory))))
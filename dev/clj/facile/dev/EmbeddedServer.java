@@ -0,0 +1,101 @@
+package clj.facile.dev;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+import org.apache.myfaces.webapp.StartupServletContextListener;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Runs a Facile webapp in an embedded Jetty, in this JVM, for the
+ * benchmarks, the load driver and the tests. The webapp directory is laid
+ * out as when deployed (the build's webapp task makes one from etc/);
+ * Facile, Clojure and MyFaces come from this JVM's class path rather than
+ * WEB-INF/lib.
+ */
+public class EmbeddedServer {
+
+	private final Server server;
+	private final SelectChannelConnector connector;
+	private final WebAppContext webapp;
+
+	private EmbeddedServer(Server server, SelectChannelConnector connector, WebAppContext webapp) {
+		this.server = server;
+		this.connector = connector;
+		this.webapp = webapp;
+	}
+
+	public static EmbeddedServer start(File dir) throws Exception {
+		return start(dir, 0, Collections.<String,String>emptyMap());
+	}
+
+	/**
+	 * Start the webapp in 'dir' on 'port' of the loopback interface (0 for
+	 * any free port), with 'params' added to its context parameters.
+	 */
+	public static EmbeddedServer start(File dir, int port, Map<String,String> params) throws Exception {
+
+		if( !new File(dir, "WEB-INF/web.xml").isFile() )
+			throw new IllegalArgumentException("No WEB-INF/web.xml in " + dir);
+
+		final Server server = new Server();
+		final SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(port);
+		server.addConnector(connector);
+
+		final WebAppContext webapp = new WebAppContext(dir.getAbsolutePath(), "/");
+		webapp.setParentLoaderPriority(true);
+		webapp.setThrowUnavailableOnStartupException(true);
+		// MyFaces isn't in WEB-INF/lib for its tld to register the listener
+		webapp.addEventListener(new StartupServletContextListener());
+		for( Map.Entry<String,String> e : params.entrySet() )
+			webapp.setInitParameter(e.getKey(), e.getValue());
+		server.setHandler(webapp);
+
+		try {
+			server.start();
+		} catch( Exception e ) {
+			server.stop();
+			throw e;
+		}
+		return new EmbeddedServer(server, connector, webapp);
+	}
+
+	/**
+	 * The URL of the webapp's root, without a trailing slash
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + connector.getLocalPort();
+	}
+
+	/**
+	 * The webapp's class loader; JSF looks its factories up by the thread's
+	 * context class loader, so code working with the webapp's JSF objects
+	 * outside of a request should run with this one.
+	 */
+	public ClassLoader getClassLoader() {
+		return webapp.getClassLoader();
+	}
+
+	public ServletContext getServletContext() {
+		return webapp.getServletContext();
+	}
+
+	/**
+	 * The session 'id', as its cookie has it, or null if there is none.
+	 */
+	public HttpSession getSession(String id) {
+		return webapp.getSessionHandler().getSessionManager().getHttpSession(id);
+	}
+
+	public void stop() throws Exception {
+		server.stop();
+	}
+}
@@ -0,0 +1,156 @@
+package clj.facile.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import clj.facile.dev.EmbeddedServer;
+
+/**
+ * What the end-to-end checks (PushCheck, ComponentCheck, ...) share: each
+ * boots a webapp in this JVM, runs its steps against it and exits with 1 if
+ * one of them didn't hold.
+ */
+public class Checks {
+
+	public interface Body {
+		void run(EmbeddedServer server) throws Exception;
+	}
+
+	/**
+	 * A browser of one session: keeps its cookie, and the content type of
+	 * the last response.
+	 */
+	static class Client {
+		private final String base;
+		private final int timeout;
+		private String cookie;
+		String contentType;
+
+		Client(String base, int timeout) {
+			this.base = base;
+			this.timeout = timeout;
+		}
+
+		HttpURLConnection open(String path) throws IOException {
+			final HttpURLConnection conn = (HttpURLConnection)new URL(base + path).openConnection();
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			if( null != cookie )
+				conn.setRequestProperty("Cookie", cookie);
+			return conn;
+		}
+
+		private String read(HttpURLConnection conn) throws IOException {
+			final String text = LoadReplay.read(conn.getInputStream());
+			final String setCookie = conn.getHeaderField("Set-Cookie");
+			if( null != setCookie )
+				cookie = setCookie.split(";", 2)[0];
+			contentType = conn.getContentType();
+			return text;
+		}
+
+		/**
+		 * The id of the client's session, or null before it has one.
+		 */
+		String session() {
+			return (null == cookie) ? null : cookie.substring(cookie.indexOf('=') + 1);
+		}
+
+		String get(String path) throws IOException {
+			return read(open(path));
+		}
+
+		String post(String path, Map<String,String> fields) throws IOException {
+
+			final StringBuilder body = new StringBuilder();
+			for( Map.Entry<String,String> e : fields.entrySet() ) {
+				if( body.length() > 0 )
+					body.append('&');
+				body.append(URLEncoder.encode(e.getKey(), "UTF-8"))
+					.append('=')
+					.append(URLEncoder.encode(e.getValue(), "UTF-8"));
+			}
+
+			final HttpURLConnection conn = open(path);
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+			final OutputStream out = conn.getOutputStream();
+			out.write(body.toString().getBytes("UTF-8"));
+			out.close();
+			return read(conn);
+		}
+	}
+
+	/**
+	 * The hidden fields of the first form on 'page', which carry the view
+	 * state and the form's marker.
+	 */
+	static Map<String,String> hiddenFields(String page) throws IOException {
+
+		final Matcher form = LoadReplay.FORM.matcher(page);
+		if( !form.find() )
+			throw new IOException("No form on the page");
+
+		final Map<String,String> fields = new LinkedHashMap<String,String>();
+		final Matcher input = LoadReplay.INPUT.matcher(form.group(2));
+		while( input.find() ) {
+			final Map<String,String> attrs = LoadReplay.attributes(input.group(1));
+			if( "hidden".equalsIgnoreCase(attrs.get("type")) && null != attrs.get("name") )
+				fields.put(attrs.get("name"), attrs.containsKey("value") ? attrs.get("value") : "");
+		}
+		return fields;
+	}
+
+	/**
+	 * Fail the check unless 'ok'; 'what' says what should hold.
+	 */
+	static void check(boolean ok, String what) {
+		if( !ok )
+			throw new AssertionError(what);
+		System.out.println("ok: " + what);
+	}
+
+	/**
+	 * The webapp directory given by -webapp in 'args'; exits if there is none.
+	 */
+	static File webapp(String name, String[] args) {
+		for( int i = 0; i + 1 < args.length; i++ ) {
+			if( "-webapp".equals(args[i]) )
+				return new File(args[i + 1]);
+		}
+		System.err.println("Usage: " + name + " -webapp <dir>");
+		System.exit(2);
+		return null;
+	}
+
+	static void run(File webapp, Body body) throws Exception {
+		run(webapp, Collections.<String,String>emptyMap(), body);
+	}
+
+	/**
+	 * Boot 'webapp' with the context parameters 'params' and run 'body'
+	 * against it, then exit.
+	 */
+	static void run(File webapp, Map<String,String> params, Body body) throws Exception {
+
+		boolean failed = false;
+		final EmbeddedServer server = EmbeddedServer.start(webapp, 0, params);
+		try {
+			body.run(server);
+		} catch( Throwable e ) {
+			System.err.println("failed: " + e);
+			failed = true;
+		} finally {
+			server.stop();
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,207 @@
+package clj.facile.load;
+
+import java.io.File;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+
+import javax.faces.FactoryFinder;
+import javax.faces.application.Application;
+import javax.faces.application.ApplicationFactory;
+import javax.faces.component.UIComponent;
+import javax.faces.context.FacesContext;
+import javax.faces.context.FacesContextFactory;
+import javax.faces.el.ValueBinding;
+import javax.faces.lifecycle.LifecycleFactory;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import clj.facile.ComponentClasses;
+import clj.facile.dev.EmbeddedServer;
+import clojure.lang.Compiler;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/**
+ * Defines a component with defcomponent in the example webapp, booted in
+ * this JVM, as a view would while it is loaded (with *compile-files* set):
+ * the class must be defined without writing anything under *compile-path*,
+ * be reused while its definition is unchanged, and be what JSF creates for
+ * its component type. Its attributes must keep their values and bindings
+ * through saving and restoring its state.
+ *
+ *   ComponentCheck -webapp build/webapp
+ */
+public class ComponentCheck {
+
+	static final String NAME = "clj.facile.check.Gauge";
+	static final String TYPE = "clj.facile.check.Gauge";
+
+	static final String NS = "(ns clj.facile.check (:use clj.facile.widget))";
+	static final String DEFINITION = "(defcomponent " + NAME + " :attribs {:label String, :limit Integer})";
+	static final String CHANGED = "(defcomponent " + NAME + " :attribs {:label String, :limit Integer, :unit String})";
+
+	/**
+	 * A binding to a constant, which is saved with the view as is.
+	 */
+	static class Constant extends ValueBinding implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Object value;
+
+		Constant(Object value) {
+			this.value = value;
+		}
+
+		public Object getValue(FacesContext ctx) {
+			return value;
+		}
+
+		public void setValue(FacesContext ctx, Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean isReadOnly(FacesContext ctx) {
+			return true;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public Class getType(FacesContext ctx) {
+			return Object.class;
+		}
+	}
+
+	/**
+	 * Call the accessor 'name' of 'component' with 'args'.
+	 */
+	static Object call(Object component, String name, Object... args) throws Exception {
+		for( Method m : component.getClass().getMethods() ) {
+			if( m.getName().equals(name) && m.getParameterTypes().length == args.length )
+				return m.invoke(component, args);
+		}
+		throw new NoSuchMethodException(name);
+	}
+
+	/**
+	 * A servlet request or response that does nothing, for a FacesContext
+	 * outside of a request.
+	 */
+	static Object stub(Class<?> type) {
+		return Proxy.newProxyInstance(ComponentCheck.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final Class<?> returns = method.getReturnType();
+				if( returns == boolean.class )
+					return Boolean.FALSE;
+				if( returns == int.class )
+					return Integer.valueOf(0);
+				if( returns == long.class )
+					return Long.valueOf(0);
+				if( returns == Enumeration.class )
+					return Collections.enumeration(Collections.emptyList());
+				return null;
+			}
+		});
+	}
+
+	static Object load(String source) throws Exception {
+		return Compiler.load(new StringReader(source));
+	}
+
+	/**
+	 * The files under 'dir'.
+	 */
+	static int count(File dir) {
+		int n = 0;
+		final File[] files = dir.listFiles();
+		if( null != files ) {
+			for( File f : files )
+				n += f.isDirectory() ? count(f) : 1;
+		}
+		return n;
+	}
+
+	static void run(EmbeddedServer server) throws Exception {
+
+		final File compilePath = File.createTempFile("facile-check", "");
+		compilePath.delete();
+		compilePath.mkdirs();
+
+		final Thread thread = Thread.currentThread();
+		final ClassLoader loader = thread.getContextClassLoader();
+		thread.setContextClassLoader(ComponentClasses.loader(server.getClassLoader()));
+		// Set up the namespace first; its own forms are compiled as any are
+		load(NS);
+		Var.pushThreadBindings(RT.map(RT.CURRENT_NS, Namespace.find(Symbol.intern("clj.facile.check")),
+				Compiler.COMPILE_FILES, Boolean.TRUE,
+				Compiler.COMPILE_PATH, compilePath.getPath()));
+		try {
+			load(DEFINITION);
+			final Class<?> defined = ComponentClasses.forName(NAME);
+			Checks.check(null != defined && UIComponent.class.isAssignableFrom(defined), "defined " + NAME);
+			Checks.check(count(compilePath) == 0, "nothing written to *compile-path*");
+
+			load(DEFINITION);
+			Checks.check(ComponentClasses.forName(NAME) == defined, "an unchanged definition reuses the class");
+
+			final Application app = ((ApplicationFactory)FactoryFinder.getFactory(FactoryFinder.APPLICATION_FACTORY)).getApplication();
+			app.addComponent(TYPE, NAME);
+			final UIComponent component = app.createComponent(TYPE);
+			Checks.check(component.getClass() == defined, "JSF creates the component from its type");
+			Checks.check(Class.forName(NAME, false, thread.getContextClassLoader()) == defined,
+					"the context class loader finds the class, as JSF does when restoring a view");
+
+			// The attributes' slots and the bindings behind them
+			final FacesContext ctx = ((FacesContextFactory)FactoryFinder.getFactory(FactoryFinder.FACES_CONTEXT_FACTORY))
+				.getFacesContext(server.getServletContext(), stub(HttpServletRequest.class), stub(HttpServletResponse.class),
+						((LifecycleFactory)FactoryFinder.getFactory(FactoryFinder.LIFECYCLE_FACTORY)).getLifecycle(LifecycleFactory.DEFAULT_LIFECYCLE));
+			call(component, "setLabel", "Level");
+			component.setValueBinding("limit", new Constant(Integer.valueOf(42)));
+			Checks.check("Level".equals(call(component, "getLabel")) && Integer.valueOf(42).equals(call(component, "getLimit")),
+					"an attribute without a value takes its binding's");
+			final Object saved = component.saveState(ctx);
+			final UIComponent restored = app.createComponent(TYPE);
+			restored.restoreState(ctx, saved);
+			Checks.check("Level".equals(call(restored, "getLabel")) && Integer.valueOf(42).equals(call(restored, "getLimit")),
+					"values and bindings survive saving and restoring");
+
+			final UIComponent other = app.createComponent(TYPE);
+			call(other, "setLimit", Integer.valueOf(7));
+			final UIComponent restoredOther = app.createComponent(TYPE);
+			restoredOther.restoreState(ctx, other.saveState(ctx));
+			Checks.check(null == call(restoredOther, "getLabel") && Integer.valueOf(7).equals(call(restoredOther, "getLimit")),
+					"each value is restored to its own slot");
+
+			load(CHANGED);
+			final Class<?> changed = ComponentClasses.forName(NAME);
+			Checks.check(changed != defined && null != changed.getMethod("getUnit"), "a changed definition defines a new class");
+			final UIComponent newer = (UIComponent)changed.newInstance();
+			newer.restoreState(ctx, saved);
+			Checks.check(null == call(newer, "getLabel"), "a state saved by the old definition leaves the slots empty");
+			// As the next request would
+			thread.setContextClassLoader(ComponentClasses.loader(server.getClassLoader()));
+			Checks.check(Class.forName(NAME, false, thread.getContextClassLoader()) == changed,
+					"the next request's context class loader finds the new class");
+			Checks.check(count(compilePath) == 0, "still nothing written to *compile-path*");
+		} finally {
+			if( null != FacesContext.getCurrentInstance() )
+				FacesContext.getCurrentInstance().release();
+			Var.popThreadBindings();
+			thread.setContextClassLoader(loader);
+			compilePath.delete();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks.run(Checks.webapp("ComponentCheck", args), new Checks.Body() {
+			public void run(EmbeddedServer server) throws Exception {
+				ComponentCheck.run(server);
+			}
+		});
+	}
+}
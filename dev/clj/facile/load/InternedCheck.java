@@ -0,0 +1,98 @@
+package clj.facile.load;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+import clj.facile.FacileLoader;
+import clj.facile.Interned;
+import clj.facile.dev.EmbeddedServer;
+
+/**
+ * Submits the example webapp's form, booted in this JVM with the view state
+ * saved on the client, to see what is saved of its select items: only the
+ * ids of the interned lists, not the items. The state must restore to the
+ * same items, and the view must still work once the interned objects and
+ * the loaded namespaces are gone, as they are after a restart.
+ *
+ *   InternedCheck -webapp build/webapp
+ */
+public class InternedCheck {
+
+	static final String VIEW = "/faces/example/core";
+	static final String SELECT = "example-form:example-select-one";
+
+	/**
+	 * The view state among the hidden 'fields', as the bytes it was serialized to.
+	 */
+	static String savedState(Map<String,String> fields) throws Exception {
+		final StringBuilder state = new StringBuilder();
+		for( Map.Entry<String,String> e : fields.entrySet() ) {
+			if( e.getKey().startsWith("jsf_") || e.getKey().equals("javax.faces.ViewState") )
+				state.append(new String(Base64.decodeBase64(e.getValue().getBytes("ISO-8859-1")), "ISO-8859-1"));
+		}
+		return state.toString();
+	}
+
+	/**
+	 * Whether 'page' shows 'value' selected in the select-one.
+	 */
+	static boolean selected(String page, String value) {
+		return page.contains("value=\"" + value + "\" selected=\"selected\"");
+	}
+
+	/**
+	 * Drop the interned objects and forget that the views were loaded, as a
+	 * restart would.
+	 */
+	static void forget() throws Exception {
+		for( String name : new String[] { "ids", "objects" } ) {
+			final Field field = Interned.class.getDeclaredField(name);
+			field.setAccessible(true);
+			((Map<?,?>)field.get(null)).clear();
+		}
+		final Field stamps = FacileLoader.class.getDeclaredField("fileStamps");
+		stamps.setAccessible(true);
+		((Map<?,?>)stamps.get(null)).clear();
+	}
+
+	static void run(EmbeddedServer server) throws Exception {
+
+		final Checks.Client client = new Checks.Client(server.getBaseUrl(), 10000);
+		final String page = client.get(VIEW);
+		final Map<String,String> fields = Checks.hiddenFields(page);
+		final String state = savedState(fields);
+		Checks.check(state.length() > 0, "the view state is saved on the page");
+		Checks.check(!state.contains("Item 0"), "the select items are left out of the view state");
+
+		fields.put(SELECT, "Value 1");
+		final String submitted = client.post(VIEW, fields);
+		Checks.check(selected(submitted, "Value 1"), "the restored items validate the submitted value");
+
+		// The namespace is loaded again, which makes the items again
+		forget();
+		final Map<String,String> again = Checks.hiddenFields(submitted);
+		again.put(SELECT, "Value 2");
+		final String restarted = client.post(VIEW, again);
+		Checks.check(restarted.contains("<option value=\"Value 2\">Item 2</option>"),
+				"a view saved before a restart renders its items");
+		final Map<String,String> after = Checks.hiddenFields(restarted);
+		after.put(SELECT, "Value 2");
+		Checks.check(selected(client.post(VIEW, after), "Value 2"), "and validates a value against them");
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		final Map<String,String> params = new HashMap<String,String>();
+		params.put("javax.faces.STATE_SAVING_METHOD", "client");
+		params.put("org.apache.myfaces.USE_ENCRYPTION", "false");
+		params.put("org.apache.myfaces.COMPRESS_STATE_IN_CLIENT", "false");
+		Checks.run(Checks.webapp("InternedCheck", args), params, new Checks.Body() {
+			public void run(EmbeddedServer server) throws Exception {
+				InternedCheck.run(server);
+			}
+		});
+	}
+}
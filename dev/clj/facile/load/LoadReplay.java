@@ -0,0 +1,402 @@
+package clj.facile.load;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import clj.facile.Metrics;
+import clj.facile.dev.EmbeddedServer;
+
+/**
+ * Replays a Script with a number of concurrent users, each with its own
+ * session, and reports latency percentiles per view and the change in the
+ * server's metrics over the run. With -webapp the webapp is booted in an
+ * embedded Jetty in this JVM and its metrics are read directly; otherwise
+ * the script runs against the server at a base URL, whose /metrics are read
+ * if it serves them:
+ *
+ *   LoadReplay [options] -webapp build/webapp script.txt
+ *   LoadReplay [options] http://localhost:8080/facile script.txt
+ *
+ * Options:
+ *   -users N        concurrent users (default 10)
+ *   -iterations N   times each user runs the script (default 10)
+ *   -warmup N       iterations per user run first and not reported (default 1)
+ */
+public class LoadReplay {
+
+	static final Pattern FORM = Pattern.compile("<form\\b([^>]*)>(.*?)</form>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	static final Pattern INPUT = Pattern.compile("<input\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+	static final Pattern ATTRIBUTE = Pattern.compile("([\\w:-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+	/**
+	 * Request latencies, in nanoseconds, by view.
+	 */
+	static class Latencies {
+
+		private final Map<String,long[]> samples = new HashMap<String,long[]>();
+		private final Map<String,Integer> counts = new HashMap<String,Integer>();
+		private final Map<String,Integer> errors = new HashMap<String,Integer>();
+
+		synchronized void record(String view, long nanos, boolean error) {
+
+			long[] s = samples.get(view);
+			final int n = counts.containsKey(view) ? counts.get(view) : 0;
+			if( null == s ) {
+				s = new long[1024];
+				samples.put(view, s);
+			} else if( n == s.length ) {
+				s = Arrays.copyOf(s, n * 2);
+				samples.put(view, s);
+			}
+			s[n] = nanos;
+			counts.put(view, n + 1);
+
+			if( error )
+				errors.put(view, (errors.containsKey(view) ? errors.get(view) : 0) + 1);
+		}
+
+		synchronized void report(double seconds) {
+
+			System.out.println(String.format("%-40s %8s %8s %9s %9s %9s %9s %9s",
+											 "view", "requests", "errors", "req/s",
+											 "p50 ms", "p90 ms", "p99 ms", "max ms"));
+			for( String view : new TreeMap<String,long[]>(samples).keySet() ) {
+				final int n = counts.get(view);
+				final long[] s = Arrays.copyOf(samples.get(view), n);
+				Arrays.sort(s);
+
+				System.out.println(String.format("%-40s %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f",
+												 view, n,
+												 errors.containsKey(view) ? errors.get(view) : 0,
+												 n / seconds,
+												 percentile(s, 0.50), percentile(s, 0.90),
+												 percentile(s, 0.99), s[n - 1] / 1e6));
+			}
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			final int i = (int)Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(i, 0)] / 1e6;
+		}
+	}
+
+	/**
+	 * One user: a cookie jar and the last page seen.
+	 */
+	static class User {
+
+		private final String base;
+		private final String basePath;
+		private final Map<String,String> cookies = new LinkedHashMap<String,String>();
+		private String page = "";
+		private String pageUrl;
+
+		User(String base) throws IOException {
+			this.base = base;
+			this.basePath = new URL(base).getPath();
+		}
+
+		void run(Script script, Latencies latencies) throws Exception {
+
+			cookies.clear();
+			for( Script.Step step : script.steps ) {
+				switch( step.kind ) {
+				case GET:
+					request("GET", base + step.target, null, latencies);
+					break;
+				case POST:
+					post(step.target, step.params, latencies);
+					break;
+				case PAUSE:
+					Thread.sleep(step.millis);
+					break;
+				}
+			}
+		}
+
+		private void post(String formId, String params, Latencies latencies) throws Exception {
+
+			final Matcher form = FORM.matcher(page);
+			while( form.find() ) {
+				final Map<String,String> formAttrs = attributes(form.group(1));
+				if( !formId.equals(formAttrs.get("id")) && !formId.equals(formAttrs.get("name")) )
+					continue;
+
+				// Hidden fields carry the view state and the form's marker
+				final Map<String,String> fields = new LinkedHashMap<String,String>();
+				final Matcher input = INPUT.matcher(form.group(2));
+				while( input.find() ) {
+					final Map<String,String> attrs = attributes(input.group(1));
+					if( "hidden".equalsIgnoreCase(attrs.get("type")) && null != attrs.get("name") )
+						fields.put(attrs.get("name"), attrs.containsKey("value") ? attrs.get("value") : "");
+				}
+				for( String pair : params.split("&") ) {
+					if( pair.length() == 0 )
+						continue;
+					final int eq = pair.indexOf('=');
+					fields.put(URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"),
+							   eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+				}
+
+				final StringBuilder body = new StringBuilder();
+				for( Map.Entry<String,String> e : fields.entrySet() ) {
+					if( body.length() > 0 )
+						body.append('&');
+					body.append(URLEncoder.encode(e.getKey(), "UTF-8"))
+						.append('=')
+						.append(URLEncoder.encode(e.getValue(), "UTF-8"));
+				}
+
+				final String action = formAttrs.get("action");
+				request("POST", null == action ? pageUrl : new URL(new URL(pageUrl), action).toString(),
+						body.toString(), latencies);
+				return;
+			}
+			throw new IOException("No form " + formId + " on " + pageUrl);
+		}
+
+		/**
+		 * Make a request, following redirects; each request is recorded
+		 * under its view.
+		 */
+		private void request(String method, String url, String body, Latencies latencies) throws IOException {
+
+			for( int redirects = 0; redirects < 10; redirects++ ) {
+				final long start = System.nanoTime();
+				final HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+				conn.setInstanceFollowRedirects(false);
+				conn.setRequestMethod(method);
+				if( !cookies.isEmpty() ) {
+					final StringBuilder cookie = new StringBuilder();
+					for( Map.Entry<String,String> e : cookies.entrySet() ) {
+						if( cookie.length() > 0 )
+							cookie.append("; ");
+						cookie.append(e.getKey()).append('=').append(e.getValue());
+					}
+					conn.setRequestProperty("Cookie", cookie.toString());
+				}
+				if( null != body ) {
+					conn.setDoOutput(true);
+					conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+					final OutputStream out = conn.getOutputStream();
+					out.write(body.getBytes("UTF-8"));
+					out.close();
+				}
+
+				final int status = conn.getResponseCode();
+				final String text = read(status >= 400 ? conn.getErrorStream() : conn.getInputStream());
+				latencies.record(view(url), System.nanoTime() - start, status >= 400);
+
+				for( Map.Entry<String,List<String>> header : conn.getHeaderFields().entrySet() ) {
+					if( !"Set-Cookie".equalsIgnoreCase(header.getKey()) )
+						continue;
+					for( String c : header.getValue() ) {
+						final String pair = c.split(";", 2)[0];
+						final int eq = pair.indexOf('=');
+						if( eq > 0 )
+							cookies.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+					}
+				}
+
+				final String location = conn.getHeaderField("Location");
+				if( status >= 300 && status < 400 && null != location ) {
+					url = new URL(new URL(url), location).toString();
+					method = "GET";
+					body = null;
+					continue;
+				}
+
+				page = text;
+				pageUrl = url;
+				return;
+			}
+			throw new IOException("Too many redirects from " + url);
+		}
+
+		/**
+		 * The view a URL requests, e.g. '/faces/example/page'
+		 */
+		private String view(String url) throws IOException {
+			String path = new URL(url).getPath();
+			if( path.startsWith(basePath) )
+				path = path.substring(basePath.length());
+			final int semi = path.indexOf(';');
+			return semi < 0 ? path : path.substring(0, semi);
+		}
+	}
+
+	static Map<String,String> attributes(String tag) {
+		final Map<String,String> attrs = new HashMap<String,String>();
+		final Matcher m = ATTRIBUTE.matcher(tag);
+		while( m.find() )
+			attrs.put(m.group(1).toLowerCase(), unescape(null != m.group(2) ? m.group(2) : m.group(3)));
+		return attrs;
+	}
+
+	static String unescape(String s) {
+		return s.replace("&lt;", "<")
+			.replace("&gt;", ">")
+			.replace("&quot;", "\"")
+			.replace("&#39;", "'")
+			.replace("&amp;", "&");
+	}
+
+	static String read(InputStream in) throws IOException {
+		if( null == in )
+			return "";
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		try {
+			for( int n = in.read(buf); n >= 0; n = in.read(buf) )
+				bytes.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return bytes.toString("UTF-8");
+	}
+
+	/**
+	 * The counters and gauges of the server at 'base', or an empty map if it
+	 * doesn't serve them; those of this JVM if 'base' is null.
+	 */
+	static Map<String,Long> metrics(String base) {
+		if( null == base )
+			return Metrics.snapshot();
+
+		final Map<String,Long> metrics = new TreeMap<String,Long>();
+		try {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(new URL(base + "/metrics").openStream(), "UTF-8"));
+			try {
+				for( String line = in.readLine(); null != line; line = in.readLine() ) {
+					final String[] kv = line.trim().split(" ");
+					if( kv.length == 2 )
+						metrics.put(kv[0], Long.parseLong(kv[1]));
+				}
+			} finally {
+				in.close();
+			}
+		} catch( Exception e ) {
+			System.err.println("Couldn't read " + base + "/metrics: " + e);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Run 'iterations' of 'script' on each of 'users' threads at once; returns
+	 * the number of failed iterations.
+	 */
+	static long run(final String base, final Script script, int users, final int iterations,
+					final Latencies latencies) throws InterruptedException {
+
+		final CountDownLatch done = new CountDownLatch(users);
+		final AtomicLong failures = new AtomicLong();
+
+		for( int i = 0; i < users; i++ ) {
+			new Thread("load-user-" + i) {
+				@Override
+				public void run() {
+					try {
+						final User user = new User(base);
+						for( int n = 0; n < iterations; n++ ) {
+							try {
+								user.run(script, latencies);
+							} catch( Exception e ) {
+								if( failures.incrementAndGet() <= 10 )
+									System.err.println(getName() + ": " + e);
+							}
+						}
+					} catch( IOException e ) {
+						System.err.println(getName() + ": " + e);
+						failures.addAndGet(iterations);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		done.await();
+		return failures.get();
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int users = 10, iterations = 10, warmup = 1;
+		File webapp = null;
+		final List<String> rest = new ArrayList<String>();
+		for( int i = 0; i < args.length; i++ ) {
+			if( "-users".equals(args[i]) )
+				users = Integer.parseInt(args[++i]);
+			else if( "-iterations".equals(args[i]) )
+				iterations = Integer.parseInt(args[++i]);
+			else if( "-warmup".equals(args[i]) )
+				warmup = Integer.parseInt(args[++i]);
+			else if( "-webapp".equals(args[i]) )
+				webapp = new File(args[++i]);
+			else
+				rest.add(args[i]);
+		}
+		if( rest.size() != (null == webapp ? 2 : 1) ) {
+			System.err.println("Usage: LoadReplay [-users N] [-iterations N] [-warmup N] (-webapp <dir> | <base url>) <script>");
+			System.exit(2);
+		}
+
+		final Script script = Script.read(new File(rest.get(rest.size() - 1)));
+
+		final EmbeddedServer server = (null == webapp) ? null : EmbeddedServer.start(webapp);
+		try {
+			final String base = (null == server) ? rest.get(0).replaceAll("/+$", "") : server.getBaseUrl();
+			// The embedded server's metrics are this JVM's
+			final String metricsBase = (null == server) ? base : null;
+
+			if( warmup > 0 ) {
+				System.out.println("Warming up: " + users + " users x " + warmup + " iterations");
+				run(base, script, users, warmup, new Latencies());
+			}
+
+			System.out.println("Running: " + users + " users x " + iterations + " iterations");
+			final Map<String,Long> before = metrics(metricsBase);
+			final Latencies latencies = new Latencies();
+			final long start = System.nanoTime();
+			final long failures = run(base, script, users, iterations, latencies);
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			final Map<String,Long> after = metrics(metricsBase);
+
+			System.out.println(String.format("%.1f s, %d of %d iterations failed", seconds, failures, users * iterations));
+			System.out.println();
+			latencies.report(seconds);
+
+			// What the run did to the server, e.g. STM retries
+			System.out.println();
+			for( Map.Entry<String,Long> e : after.entrySet() ) {
+				final Long old = before.get(e.getKey());
+				final long delta = e.getValue() - (null == old ? 0 : old);
+				if( delta != 0 )
+					System.out.println(String.format("%-50s %+d", e.getKey(), delta));
+			}
+		} finally {
+			if( null != server )
+				server.stop();
+		}
+	}
+}
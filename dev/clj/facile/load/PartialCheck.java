@@ -0,0 +1,71 @@
+package clj.facile.load;
+
+import java.util.Map;
+
+import clj.facile.dev.EmbeddedServer;
+import clojure.lang.IDeref;
+import clojure.lang.RT;
+
+/**
+ * Sends partial requests to the example webapp, booted in this JVM: only the
+ * components a request executes are decoded, validated and updated, so a
+ * value the select-one would reject doesn't hold up the input executed
+ * beside it, and only the components it asks for are rendered.
+ *
+ *   PartialCheck -webapp build/webapp
+ */
+public class PartialCheck {
+
+	static final String VIEW = "/faces/example/core";
+	static final String INPUT = "example-form:name";
+	static final String SELECT = "example-form:example-select-one";
+
+	static Map<String,String> partial(String page, String execute, String render) throws Exception {
+		final Map<String,String> fields = Checks.hiddenFields(page);
+		fields.put("clj.facile.partial", "true");
+		fields.put("clj.facile.execute", execute);
+		fields.put("clj.facile.render", render);
+		return fields;
+	}
+
+	static Object selected() throws Exception {
+		return ((IDeref)RT.var("example", "select-one-val").deref()).deref();
+	}
+
+	static void run(EmbeddedServer server) throws Exception {
+
+		final Checks.Client client = new Checks.Client(server.getBaseUrl(), 10000);
+		final String page = client.get(VIEW);
+
+		// The select-one isn't executed, so its value isn't checked
+		final Map<String,String> fields = partial(page, INPUT, INPUT);
+		fields.put(INPUT, "Partly typed");
+		fields.put(SELECT, "Not an item");
+		final String response = client.post(VIEW, fields);
+		Checks.check(response.startsWith("<?xml") && response.contains("<partial-response>")
+				&& null != client.contentType && client.contentType.startsWith("text/xml"),
+				"a partial request gets a partial response");
+		Checks.check(response.contains("<update id=\"" + INPUT + "\">") && response.contains("value=\"Partly typed\""),
+				"the executed input is updated and rendered");
+		Checks.check(!response.contains("<html") && !response.contains("output-tst") && !response.contains(SELECT),
+				"nothing else is rendered");
+		Checks.check(response.contains("<state>"), "the new view state comes along");
+		Checks.check(null == selected(), "the select-one is left alone");
+
+		final Map<String,String> select = partial(page, SELECT, SELECT);
+		select.put(SELECT, "Value 2");
+		final String selectResponse = client.post(VIEW, select);
+		Checks.check("Value 2".equals(selected()) && selectResponse.contains("value=\"Value 2\" selected=\"selected\""),
+				"executing the select-one updates it");
+
+		Checks.check(client.get(VIEW).contains("value=\"Partly typed\""), "the whole page shows what was executed");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks.run(Checks.webapp("PartialCheck", args), new Checks.Body() {
+			public void run(EmbeddedServer server) throws Exception {
+				PartialCheck.run(server);
+			}
+		});
+	}
+}
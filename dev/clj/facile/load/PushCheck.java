@@ -0,0 +1,123 @@
+package clj.facile.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import clj.facile.dev.EmbeddedServer;
+import clojure.lang.LockingTransaction;
+import clojure.lang.RT;
+import clojure.lang.Ref;
+
+/**
+ * Drives a push through the example webapp, booted in this JVM: a page is
+ * built, which records its dependencies; a client subscribes to the view on
+ * /push; a Ref the page binds to is changed; the client must then hear about
+ * the component bound to it, and a partial request for that component must
+ * render the new value, as facile.js's refresh() would ask for it.
+ *
+ *   PushCheck [-timeout millis] -webapp build/webapp
+ */
+public class PushCheck {
+
+	static final String VIEW = "example/core";
+	static final String NS = "example";
+	static final String VAR = "select-boolean-val";
+	static final String CLIENT_ID = "example-form:select-boolean";
+
+	private final Checks.Client client;
+
+	PushCheck(String base, int timeout) {
+		this.client = new Checks.Client(base, timeout);
+	}
+
+	/**
+	 * The data of the next update event on 'events', skipping comments.
+	 */
+	private static String nextUpdate(BufferedReader events) throws IOException {
+
+		boolean update = false;
+		for( String line = events.readLine(); null != line; line = events.readLine() ) {
+			if( line.equals("event: update") )
+				update = true;
+			else if( update && line.startsWith("data: ") )
+				return line.substring("data: ".length());
+			else if( line.length() == 0 )
+				update = false;
+		}
+		throw new IOException("The event stream ended");
+	}
+
+	private static void set(final Ref ref, final Object value) throws Exception {
+		LockingTransaction.runInTransaction(new Callable<Object>() {
+			public Object call() throws Exception {
+				return ref.set(value);
+			}
+		});
+	}
+
+	void run(EmbeddedServer server) throws Exception {
+
+		final String page = client.get("/faces/" + VIEW);
+		Checks.check(page.contains("id=\"" + CLIENT_ID + "\""), "the page renders " + CLIENT_ID);
+
+		final HttpURLConnection stream = client.open("/push/" + VIEW);
+		final BufferedReader events = new BufferedReader(new InputStreamReader(stream.getInputStream(), "UTF-8"));
+		try {
+			// The servlet subscribes the client before writing its first comment
+			final String first = events.readLine();
+			Checks.check(null != first && first.startsWith(": subscribed"), "subscribed to " + VIEW);
+
+			final Thread thread = Thread.currentThread();
+			final ClassLoader loader = thread.getContextClassLoader();
+			thread.setContextClassLoader(server.getClassLoader());
+			final Ref ref = (Ref)RT.var(NS, VAR).deref();
+			try {
+				set(ref, Boolean.TRUE);
+
+				final String ids = nextUpdate(events);
+				Checks.check((" " + ids + " ").contains(" " + CLIENT_ID + " "), "pushed " + ids);
+
+				final Map<String,String> fields = Checks.hiddenFields(page);
+				fields.put("clj.facile.partial", "true");
+				fields.put("clj.facile.execute", "");
+				fields.put("clj.facile.render", ids);
+				final String partial = client.post("/faces/" + VIEW, fields);
+				Checks.check(partial.contains("<partial-response") && partial.contains("checked"),
+						"the partial response renders the new value");
+			} finally {
+				set(ref, null);
+				thread.setContextClassLoader(loader);
+			}
+		} finally {
+			stream.disconnect();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int timeout = 10000;
+		File webapp = null;
+		for( int i = 0; i < args.length; i++ ) {
+			if( "-timeout".equals(args[i]) )
+				timeout = Integer.parseInt(args[++i]);
+			else if( "-webapp".equals(args[i]) )
+				webapp = new File(args[++i]);
+		}
+		if( null == webapp ) {
+			System.err.println("Usage: PushCheck [-timeout millis] -webapp <dir>");
+			System.exit(2);
+		}
+
+		final int millis = timeout;
+		Checks.run(webapp, new Checks.Body() {
+			public void run(EmbeddedServer server) throws Exception {
+				new PushCheck(server.getBaseUrl(), millis).run(server);
+			}
+		});
+	}
+}
@@ -0,0 +1,105 @@
+package clj.facile.load;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import clj.facile.dev.EmbeddedServer;
+
+/**
+ * Submits the example webapp's form, booted in this JVM in render-diff mode,
+ * as facile.submit() would: the answer must hold only the components whose
+ * markup changed, and the token it carries must describe the page the
+ * client patched. A partial request in between must leave a token that
+ * does the same, and drop the one it replaced.
+ *
+ *   RenderDiffCheck -webapp build/webapp
+ */
+public class RenderDiffCheck {
+
+	static final String VIEW = "/faces/example/core";
+	static final String INPUT = "example-form:name";
+	static final String BOOLEAN = "example-form:select-boolean";
+	static final String TOKEN = "clj.facile.diff";
+
+	static final Pattern META = Pattern.compile("<meta name=\"" + TOKEN + "\" content=\"([^\"]+)\"");
+	static final Pattern ELEMENT = Pattern.compile("<token>([^<]+)</token>");
+	static final Pattern UPDATE = Pattern.compile("<update id=\"([^\"]+)\">");
+
+	static String token(Pattern pattern, String response) {
+		final Matcher m = pattern.matcher(response);
+		return m.find() ? m.group(1) : null;
+	}
+
+	static int updates(String response) {
+		int n = 0;
+		for( Matcher m = UPDATE.matcher(response); m.find(); )
+			n++;
+		return n;
+	}
+
+	/**
+	 * Submit the form of 'page' with the name input set to 'name', as
+	 * facile.submit() would with 'token'.
+	 */
+	static String submit(Checks.Client client, String page, String name, String token) throws Exception {
+		final Map<String,String> fields = Checks.hiddenFields(page);
+		fields.put(INPUT, name);
+		fields.put(TOKEN, token);
+		return client.post(VIEW, fields);
+	}
+
+	static void run(EmbeddedServer server) throws Exception {
+
+		// The first page of a session has its id in the form's action, which
+		// the pages after it don't, so start from one of those
+		final Checks.Client client = new Checks.Client(server.getBaseUrl(), 10000);
+		client.get(VIEW);
+		final String page = client.get(VIEW);
+		final String first = token(META, page);
+		Checks.check(null != first, "the page carries a render-diff token");
+
+		final String changed = submit(client, page, "Changed", first);
+		Checks.check(changed.contains("<partial-response>") && updates(changed) == 1
+				&& changed.contains("<update id=\"" + INPUT + "\">") && changed.contains("value=\"Changed\""),
+				"a submit gets back only the input it changed");
+		final String second = token(ELEMENT, changed);
+		Checks.check(null != second && !second.equals(first) && changed.contains("<state>"),
+				"with a new token and the view state");
+
+		final String same = submit(client, page, "Changed", second);
+		Checks.check(same.contains("<partial-response>") && updates(same) == 0,
+				"submitting the same values changes nothing");
+		final String third = token(ELEMENT, same);
+
+		final Map<String,String> fields = Checks.hiddenFields(page);
+		fields.put(INPUT, "Changed");
+		fields.put(TOKEN, third);
+		fields.put("clj.facile.partial", "true");
+		fields.put("clj.facile.execute", "");
+		fields.put("clj.facile.render", BOOLEAN);
+		final String partial = client.post(VIEW, fields);
+		final String patched = token(ELEMENT, partial);
+		Checks.check(partial.contains("<update id=\"" + BOOLEAN + "\">") && null != patched && !patched.equals(third),
+				"a partial response carries a token for the patched page");
+
+		final String after = submit(client, page, "Changed", patched);
+		Checks.check(after.contains("<partial-response>") && updates(after) == 0,
+				"the patched page's token has the hashes of what it shows");
+
+		final String expired = submit(client, page, "Changed", third);
+		Checks.check(expired.contains("<html") && !expired.contains("<partial-response>"),
+				"the token a partial response replaced gets the whole page");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks.run(Checks.webapp("RenderDiffCheck", args),
+				Collections.singletonMap("clj.facile.render-diff", "true"),
+				new Checks.Body() {
+					public void run(EmbeddedServer server) throws Exception {
+						RenderDiffCheck.run(server);
+					}
+				});
+	}
+}
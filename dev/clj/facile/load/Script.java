@@ -0,0 +1,78 @@
+package clj.facile.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scripted session: the requests one user makes, in order. One step per
+ * line, blank lines and lines starting with '#' are ignored:
+ *
+ *   get  /faces/example/page
+ *   post example-form  example-form:name=Bob&example-form:submit=Submit
+ *   pause 500
+ *
+ * 'get' requests a path relative to the base URL. 'post' submits the form
+ * with the given id from the last page, with the form's hidden fields (view
+ * state included) and the given fields, written as in a query string.
+ * 'pause' waits for a number of milliseconds, as a user would.
+ */
+public class Script {
+
+	public enum Kind { GET, POST, PAUSE }
+
+	public static class Step {
+		public final Kind kind;
+		public final String target;
+		public final String params;
+		public final long millis;
+
+		Step(Kind kind, String target, String params, long millis) {
+			this.kind = kind;
+			this.target = target;
+			this.params = params;
+			this.millis = millis;
+		}
+	}
+
+	public final List<Step> steps = new ArrayList<Step>();
+
+	public static Script read(File file) throws IOException {
+
+		final Script script = new Script();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			int lineNo = 0;
+			for( String line = in.readLine(); null != line; line = in.readLine() ) {
+				lineNo++;
+				line = line.trim();
+				if( line.length() == 0 || line.startsWith("#") )
+					continue;
+
+				final String[] words = line.split("\\s+", 3);
+				final String kind = words[0].toLowerCase();
+				if( words.length < 2 )
+					throw new IOException(file + ":" + lineNo + ": missing argument to " + kind);
+
+				if( "get".equals(kind) )
+					script.steps.add(new Step(Kind.GET, words[1], null, 0));
+				else if( "post".equals(kind) )
+					script.steps.add(new Step(Kind.POST, words[1], words.length > 2 ? words[2] : "", 0));
+				else if( "pause".equals(kind) )
+					script.steps.add(new Step(Kind.PAUSE, null, null, Long.parseLong(words[1])));
+				else
+					throw new IOException(file + ":" + lineNo + ": unknown step " + kind);
+			}
+		} finally {
+			in.close();
+		}
+
+		if( script.steps.isEmpty() || script.steps.get(0).kind == Kind.POST )
+			throw new IOException(file + ": a script has to start with a get");
+		return script;
+	}
+}
@@ -0,0 +1,116 @@
+package clj.facile.load;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import clj.facile.SessionBinding;
+import clj.facile.SessionValue;
+import clj.facile.dev.EmbeddedServer;
+import clojure.lang.Compiler;
+import clojure.lang.RT;
+import clojure.lang.Ref;
+import clojure.lang.Util;
+import clojure.lang.Var;
+
+/**
+ * Moves a session of the example webapp, booted in this JVM, to another
+ * node as a replicating container would: each session value is serialized
+ * and what is read back is set in its place. A value that reads back must
+ * be there in a fresh Ref, and the page must still show it; a value that
+ * doesn't, such as a plain Object, must be left out and initialized again.
+ *
+ *   SessionCheck -webapp build/webapp
+ */
+public class SessionCheck {
+
+	static final String VIEW = "/faces/example/core";
+	static final String INPUT = "example-form:name";
+
+	static final String NS = "(ns clj.facile.check.session (:use clj.facile))"
+		+ " (defsession items (ref {:a [1 2], :b #{\"c\"}}))"
+		+ " (defsession lock (ref (Object.)))";
+
+	static Object copy(Object value) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+
+	/**
+	 * Replace each session value of 'session' with what serializing it
+	 * reads back as.
+	 */
+	static void moveToAnotherNode(HttpSession session) throws Exception {
+		for( String name : Collections.list(session.getAttributeNames()) ) {
+			final Object value = session.getAttribute(name);
+			if( value instanceof SessionValue )
+				session.setAttribute(name, copy(value));
+		}
+	}
+
+	static Object binding(String name) {
+		return RT.var("clj.facile.check.session", name).deref();
+	}
+
+	static void run(EmbeddedServer server) throws Exception {
+
+		final Checks.Client client = new Checks.Client(server.getBaseUrl(), 10000);
+		final Map<String,String> fields = Checks.hiddenFields(client.get(VIEW));
+		fields.put(INPUT, "Kept on the next node");
+		client.post(VIEW, fields);
+		final HttpSession session = server.getSession(client.session());
+		Checks.check(null != session, "the client has a session");
+
+		final Thread thread = Thread.currentThread();
+		final ClassLoader loader = thread.getContextClassLoader();
+		thread.setContextClassLoader(server.getClassLoader());
+		Var.pushThreadBindings(RT.map(RT.var("clj.facile", "*http-session*"), session));
+		try {
+			Compiler.load(new StringReader(NS));
+			final SessionBinding items = (SessionBinding)binding("items");
+			final SessionBinding lock = (SessionBinding)binding("lock");
+			final Object itemsRef = items.ref();
+			final Object lockRef = lock.ref();
+
+			moveToAnotherNode(session);
+
+			Checks.check(client.get(VIEW).contains("value=\"Kept on the next node\""),
+					"a string value is kept");
+
+			final Object items2 = items.ref();
+			Checks.check(items2 instanceof Ref && items2 != itemsRef && Util.equiv(((Ref)itemsRef).deref(), ((Ref)items2).deref()),
+					"a map of vectors and sets reads back equal in a fresh Ref");
+
+			final Object dropped = session.getAttribute("clj.facile.check.session/lock");
+			Checks.check(dropped instanceof SessionValue && ((SessionValue)dropped).isDropped(),
+					"an Object, printed as #<...>, is left out");
+			final Object lock2 = lock.ref();
+			Checks.check(lock2 instanceof Ref && lock2 != lockRef && null != ((Ref)lock2).deref()
+					&& ((Ref)lock2).deref() != ((Ref)lockRef).deref(),
+					"and initialized again when it is asked for");
+			final Object replaced = session.getAttribute("clj.facile.check.session/lock");
+			Checks.check(replaced instanceof SessionValue && !((SessionValue)replaced).isDropped(),
+					"the session holds the new value");
+		} finally {
+			Var.popThreadBindings();
+			thread.setContextClassLoader(loader);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks.run(Checks.webapp("SessionCheck", args), new Checks.Body() {
+			public void run(EmbeddedServer server) throws Exception {
+				SessionCheck.run(server);
+			}
+		});
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Client side support for Facile partial requests.
+ *
+ *   facile.partial(element, "form:name", "form:name form:greeting")
+ *
+ * posts the form containing 'element', asks the server to execute the
+ * components in the first list and render the components in the second,
+ * then patches the returned markup into the page.
+ *
+ *   facile.submit(element)
+ *
+ * posts the form like a normal submit, and with render-diff mode on the
+ * server sends back only the components whose markup changed.
+ */
+var facile = (function() {
+
+    function enclosingForm(element) {
+        while( element && element.nodeName.toLowerCase() != 'form' )
+            element = element.parentNode;
+        return element;
+    }
+
+    function encode(name, value) {
+        return encodeURIComponent(name) + '=' + encodeURIComponent(value);
+    }
+
+    function serialize(form) {
+        var parms = [];
+        for( var i=0; i<form.elements.length; i++ ) {
+            var e = form.elements[i];
+            if( !e.name || e.disabled )
+                continue;
+
+            var type = (e.type || '').toLowerCase();
+            if( type == 'submit' || type == 'button' || type == 'image' )
+                continue;
+            if( (type == 'checkbox' || type == 'radio') && !e.checked )
+                continue;
+
+            if( e.nodeName.toLowerCase() == 'select' ) {
+                for( var j=0; j<e.options.length; j++ )
+                    if( e.options[j].selected )
+                        parms.push(encode(e.name, e.options[j].value));
+            } else {
+                parms.push(encode(e.name, e.value));
+            }
+        }
+        return parms;
+    }
+
+    function textOf(node) {
+        var text = '';
+        for( var i=0; i<node.childNodes.length; i++ )
+            text += node.childNodes[i].nodeValue;
+        return text;
+    }
+
+    function fragment(html) {
+        var div = document.createElement('div');
+        div.innerHTML = html;
+        return div;
+    }
+
+    function replace(id, html) {
+        var target = document.getElementById(id);
+        if( !target )
+            return false;
+
+        var div = fragment(html);
+        var parent = target.parentNode;
+        while( div.firstChild )
+            parent.insertBefore(div.firstChild, target);
+        parent.removeChild(target);
+        return true;
+    }
+
+    var TOKEN = 'clj.facile.diff';
+
+    function tokenMeta() {
+        var metas = document.getElementsByTagName('meta');
+        for( var i=0; i<metas.length; i++ )
+            if( metas[i].name == TOKEN )
+                return metas[i];
+        return null;
+    }
+
+    function updateState(html) {
+        var inputs = fragment(html).getElementsByTagName('input');
+        for( var i=0; i<inputs.length; i++ ) {
+            var fields = document.getElementsByName(inputs[i].name);
+            for( var j=0; j<fields.length; j++ )
+                fields[j].value = inputs[i].value;
+        }
+    }
+
+    // Apply a <partial-response> document to the page. If any of the
+    // updated components has no element of its own we fall back to
+    // reloading the whole page.
+    function apply(doc) {
+        var root = doc.documentElement;
+        var complete = true;
+
+        for( var i=0; i<root.childNodes.length; i++ ) {
+            var node = root.childNodes[i];
+            if( node.nodeName == 'update' )
+                complete = replace(node.getAttribute('id'), textOf(node)) && complete;
+            else if( node.nodeName == 'state' )
+                updateState(textOf(node));
+            else if( node.nodeName == 'token' && tokenMeta() )
+                tokenMeta().content = textOf(node);
+        }
+
+        if( !complete )
+            window.location.reload();
+    }
+
+    function send(form, parms) {
+        // The page's render-diff token, for the server to bring up to date
+        var meta = tokenMeta();
+        if( meta )
+            parms.push(encode(TOKEN, meta.content));
+
+        var xhr = new XMLHttpRequest();
+        xhr.open('POST', form.action, true);
+        xhr.setRequestHeader('Content-Type', 'application/x-www-form-urlencoded');
+        xhr.onreadystatechange = function() {
+            if( xhr.readyState != 4 )
+                return;
+
+            if( xhr.status == 200 && xhr.responseXML )
+                apply(xhr.responseXML);
+            else
+                window.location.reload();
+        };
+        xhr.send(parms.join('&'));
+    }
+
+    function partial(element, execute, render) {
+        var form = enclosingForm(element);
+        var parms = serialize(form);
+
+        // Include the element that triggered the request, e.g. a command
+        if( element.name && element != form )
+            parms.push(encode(element.name, element.value));
+
+        parms.push(encode('clj.facile.partial', 'true'));
+        parms.push(encode('clj.facile.execute', execute || ''));
+        parms.push(encode('clj.facile.render', render || execute || ''));
+
+        send(form, parms);
+        return false;
+    }
+
+    // Submit the form containing 'element'. With render-diff mode on, the
+    // server answers with the components that changed; anything else, e.g.
+    // the page navigated to, replaces the document.
+    function submit(element) {
+        var form = enclosingForm(element);
+        var meta = tokenMeta();
+        if( !meta )
+            return true;
+
+        var parms = serialize(form);
+        if( element.name && element != form )
+            parms.push(encode(element.name, element.value));
+        parms.push(encode(TOKEN, meta.content));
+
+        var xhr = new XMLHttpRequest();
+        xhr.open('POST', form.action, true);
+        xhr.setRequestHeader('Content-Type', 'application/x-www-form-urlencoded');
+        xhr.onreadystatechange = function() {
+            if( xhr.readyState != 4 )
+                return;
+
+            var doc = xhr.responseXML;
+            if( xhr.status == 200 && doc && doc.documentElement
+                && doc.documentElement.nodeName == 'partial-response' ) {
+                apply(doc);
+            } else {
+                document.open();
+                document.write(xhr.responseText);
+                document.close();
+            }
+        };
+        xhr.send(parms.join('&'));
+        return false;
+    }
+
+    // Re-render the listed components without executing anything. Uses the
+    // first form on the page to carry the view state.
+    function refresh(render) {
+        var form = document.forms[0];
+        if( !form ) {
+            window.location.reload();
+            return;
+        }
+
+        var parms = serialize(form);
+        parms.push(encode('clj.facile.partial', 'true'));
+        parms.push(encode('clj.facile.execute', ''));
+        parms.push(encode('clj.facile.render', render));
+
+        send(form, parms);
+    }
+
+    // Listen for changes pushed by the PushServlet, e.g.
+    //   facile.subscribe('/contextRoot/push/foo/bar')
+    function subscribe(url) {
+        var events = new EventSource(url);
+        events.addEventListener('update', function(ev) {
+            refresh(ev.data);
+        }, false);
+        return events;
+    }
+
+    return {
+        partial: partial,
+        submit: submit,
+        refresh: refresh,
+        subscribe: subscribe,
+        apply: apply
+    };
+})();